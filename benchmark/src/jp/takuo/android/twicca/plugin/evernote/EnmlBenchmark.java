@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.os.Debug;
+import android.text.format.Time;
+
+/**
+ * Measures the bytes and objects allocated to render one note, with the
+ * old chain of replaceAll and String concatenation and with
+ * {@link NoteTemplate} and {@link EnmlWriter}. Both render from the same
+ * {@link Clip} and format its time. It is not part of the APK, build it
+ * against the classes of the app and run it on the device with
+ *
+ * <pre>
+ * javac -source 1.6 -target 1.6 -cp bin/classes:$ANDROID_JAR -d bin/benchmark \
+ *     benchmark/src/jp/takuo/android/twicca/plugin/evernote/EnmlBenchmark.java
+ * dx --dex --output=bin/benchmark.jar bin/classes bin/benchmark
+ * adb push bin/benchmark.jar /data/local/tmp/
+ * adb shell CLASSPATH=/data/local/tmp/benchmark.jar \
+ *     app_process / jp.takuo.android.twicca.plugin.evernote.EnmlBenchmark [iterations]
+ * </pre>
+ */
+public class EnmlBenchmark {
+    private static final int ITERATIONS = 1000;
+    private static final String[] TWEETS = {
+        "Hello world",
+        "Reading http://example.com/path?q=1&r=2 now\n#android #evernote via @takuo",
+        "\u65e5\u672c\u8a9e\u306e\u30c4\u30a4\u30fc\u30c8 #\u30c6\u30b9\u30c8 http://t.co/abcdefg\n"
+            + "\u6539\u884c\u306e\u3042\u3068 $AAPL @someone http://pic.twitter.com/xyz",
+    };
+
+    /* the rendering replaced by EnmlWriter, kept to compare against */
+    private static final String SEARCH_URL = "https://twitter.com/search?q=%23";
+    private static final String HASHTAG_ALPHA_CHARS = "a-z\\u00c0-\\u00d6\\u00d8-\\u00f6\\u00f8-\\u00ff\\u015f"
+            + "\\u0400-\\u04ff\\u0500-\\u0527\\u2de0-\\u2dff\\ua640-\\ua69f"
+            + "\\u1100-\\u11ff\\u3130-\\u3185\\uA960-\\uA97F\\uAC00-\\uD7AF\\uD7B0-\\uD7FF"
+            + "\\p{InHiragana}\\p{InKatakana}\\p{InCJKUnifiedIdeographs}\\u3005\\u303b"
+            + "\\uff21-\\uff3a\\uff41-\\uff5a\\uff66-\\uff9f\\uffa1-\\uffdc";
+    private static final String HASHTAG_ALPHA_NUMERIC_CHARS = "0-9\\uff10-\\uff19_" + HASHTAG_ALPHA_CHARS;
+    private static final Pattern HASHTAG_PATTERN = Pattern.compile(
+            "(^|[^&/" + HASHTAG_ALPHA_NUMERIC_CHARS + "])(#|\uff03)("
+            + "[" + HASHTAG_ALPHA_NUMERIC_CHARS + "]*[" + HASHTAG_ALPHA_CHARS + "]"
+            + "[" + HASHTAG_ALPHA_NUMERIC_CHARS + "]*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HASHTAG_END = Pattern.compile("^(?:[#\uff03]|://)");
+    private static final Pattern URL_PATTERN = Pattern.compile(
+            "(https?://){1}[\\w\\.\\-/:\\#\\?\\=\\&\\;\\%\\~\\+]+", Pattern.CASE_INSENSITIVE);
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+        Clip[] clips = new Clip[TWEETS.length];
+        for (int i = 0; i < TWEETS.length; i++) {
+            clips[i] = new Clip();
+            clips[i].put(Clip.TWEET_TEXT, TWEETS[i]);
+            clips[i].put(Clip.PROFILE_IMAGE, "http://a0.twimg.com/profile_images/1/normal.png");
+            clips[i].put(Clip.USER_NAME, "Takuo Kitame");
+            clips[i].put(Clip.SCREEN_NAME, "takuo");
+            clips[i].put(Clip.TWEET_ID, "123456789012345678");
+            clips[i].put(Clip.CREATED_AT, String.valueOf(System.currentTimeMillis()));
+            clips[i].put(Clip.SOURCE, "twicca");
+        }
+        // warm up, also fills the header cache as repeated authors do
+        for (int i = 0; i < TWEETS.length; i++) {
+            renderOld(clips[i]);
+            renderNew(clips[i]);
+        }
+        for (int i = 0; i < TWEETS.length; i++) {
+            System.out.println("tweet " + i + " (" + TWEETS[i].length() + " chars)");
+            report("  old", measure(true, clips[i], iterations), iterations);
+            report("  new", measure(false, clips[i], iterations), iterations);
+        }
+    }
+
+    // returns the bytes and the objects allocated by this thread
+    private static long[] measure(boolean old, Clip clip, int iterations) {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < iterations; i++) {
+            if (old) {
+                renderOld(clip);
+            } else {
+                renderNew(clip);
+            }
+        }
+        long[] result = { Debug.getThreadAllocSize(), Debug.getThreadAllocCount() };
+        Debug.stopAllocCounting();
+        return result;
+    }
+
+    private static void report(String name, long[] result, int iterations) {
+        System.out.println(name + ": " + result[0] / iterations + " bytes, "
+                + result[1] / iterations + " objects per clip");
+    }
+
+    private static String renderNew(Clip clip) {
+        return NoteTemplate.get(NoteTemplate.LAYOUT_CARD).render(clip,
+                TweetEntities.extract(clip.get(Clip.TWEET_TEXT)), null, null);
+    }
+
+    private static String renderOld(Clip clip) {
+        Time time = new Time();
+        time.set(Long.parseLong(clip.get(Clip.CREATED_AT)));
+        Matcher matcher = URL_PATTERN.matcher(clip.get(Clip.TWEET_TEXT));
+        String body = matcher.replaceAll("<a target=\"_blank\" href=\"$0\">$0</a>").replace("\n", "<br />");
+        body = autoLinkHashtags(body);
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">"
+            + "<en-note>"
+            + "<table style='border-radius: 10px; background-color: #eeeeee'>"
+            + "<tr><td valign='top' style='padding: 10px'>"
+            + "<img src=\"" + clip.get(Clip.PROFILE_IMAGE) + "\"/>"
+            + " </td>"
+            + "<td style='padding: 10px'>"
+            + "<b>" + clip.get(Clip.USER_NAME) + "(<a href=\"http://twitter.com/"
+            + clip.get(Clip.SCREEN_NAME) + "\">" + "@" + clip.get(Clip.SCREEN_NAME) + "</a>)</b>"
+            + "<p>" + body + "</p>"
+            + "<a style='color: #888888' href=\"http://twitter.com/" + clip.get(Clip.SCREEN_NAME)
+            + "/status/" + clip.get(Clip.TWEET_ID) + "\">" + time.format("%m/%d %H:%M:%S") + "</a>"
+            + " <span style='color: #888888'>from " + clip.get(Clip.SOURCE) + "</span>"
+            + "</td></tr>"
+            + "</table>"
+            + "</en-note>";
+    }
+
+    private static String autoLinkHashtags(String text) {
+        StringBuffer sb = new StringBuffer();
+        Matcher matcher = HASHTAG_PATTERN.matcher(text);
+        while (matcher.find()) {
+            String after = text.substring(matcher.end());
+            if (!HASHTAG_END.matcher(after).find()) {
+                StringBuilder replacement = new StringBuilder(text.length() * 2);
+                replacement.append(matcher.group(1))
+                    .append("<a href=\"").append(SEARCH_URL)
+                    .append(matcher.group(3)).append("\"")
+                    .append(" target=\"_blank\" title=\"#").append(matcher.group(3))
+                    .append("\"");
+                replacement.append(">").append(matcher.group(2))
+                    .append(matcher.group(3)).append("</a>");
+                matcher.appendReplacement(sb, replacement.toString());
+            } else {
+                matcher.appendReplacement(sb, "$0");
+            }
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
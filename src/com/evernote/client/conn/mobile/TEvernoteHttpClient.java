@@ -60,7 +60,7 @@ public class TEvernoteHttpClient extends TTransport {
   /**
    * Keep requests in RAM if they are less than 512kb.
    */
-  private static final int MEMORY_BUFFER_SIZE = 512 * 1024;
+  public static final int MEMORY_BUFFER_SIZE = 512 * 1024;
   private URL url_ = null;
   private String userAgent = null;
   private final DiskBackedByteStore requestBuffer_;
@@ -83,6 +83,18 @@ public class TEvernoteHttpClient extends TTransport {
    */
   public TEvernoteHttpClient(String url, String userAgent, File tempDir)
       throws TTransportException {
+    this(url, userAgent, tempDir, MEMORY_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new TAndroidHttpClient which keeps requests in RAM only up to
+   * the given size. Use a small size for requests carrying resource data,
+   * so that their bytes go to disk rather than the heap.
+   *
+   * @param memoryBufferSize The largest request, in bytes, kept in RAM.
+   */
+  public TEvernoteHttpClient(String url, String userAgent, File tempDir,
+      int memoryBufferSize) throws TTransportException {
     
     getHTTPClient();
 
@@ -90,7 +102,7 @@ public class TEvernoteHttpClient extends TTransport {
     try {
       url_ = new URL(url);
       requestBuffer_ =
-          new DiskBackedByteStore(tempDir, "http", MEMORY_BUFFER_SIZE);
+          new DiskBackedByteStore(tempDir, "http", memoryBufferSize);
     } catch (IOException iox) {
       throw new TTransportException(iox);
     }
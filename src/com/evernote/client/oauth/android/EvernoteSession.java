@@ -185,12 +185,22 @@ public class EvernoteSession {
    * connection to the Evernote service.
    */
   public NoteStore.Client createNoteStore() throws TTransportException {
+    return createNoteStore(TEvernoteHttpClient.MEMORY_BUFFER_SIZE);
+  }
+
+  /**
+   * Get a new NoteStore Client whose requests are kept in RAM only up to
+   * memoryBufferSize bytes and are cached on disk beyond that.
+   *
+   * @see #createNoteStore()
+   */
+  public NoteStore.Client createNoteStore(int memoryBufferSize) throws TTransportException {
     if (!isLoggedIn()) {
       throw new IllegalStateException();
     }   
     TEvernoteHttpClient transport = 
       new TEvernoteHttpClient(authenticationResult.getNoteStoreUrl(), 
-          applicationInfo.getUserAgent(), tempDir);
+          applicationInfo.getUserAgent(), tempDir, memoryBufferSize);
     TBinaryProtocol protocol = new TBinaryProtocol(transport);
     return new NoteStore.Client(protocol, protocol);  
   }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Intent;
+
+/**
+ * A single clip request waiting in the {@link ClipOutbox}.
+ * Fields are stored as key/value pairs so that new fields can be
+ * added without breaking journals written by older versions.
+ */
+public class Clip {
+    public static final String NOTEBOOK = "notebook";
+    public static final String NOTEBOOK_GUID = "notebook_guid";
+    public static final String TAGS     = "tags";
+    public static final String TITLE    = "title";
+    public static final String BODY     = Intent.EXTRA_TEXT;
+    public static final String URL      = "url";
+    // raw tweet, rendered by the service when there is no BODY
+    public static final String TWEET_TEXT    = "tweet_text";
+    public static final String TWEET_ID      = "id";
+    public static final String SCREEN_NAME   = "user_screen_name";
+    public static final String USER_NAME     = "user_name";
+    public static final String PROFILE_IMAGE = "user_profile_image_url_normal";
+    public static final String CREATED_AT    = "created_at";
+    public static final String SOURCE        = "source";
+    // settings at the time of the clip, set by the service for a raw tweet
+    public static final String LAYOUT        = "layout";
+    public static final String EMBED_AVATAR  = "embed_avatar";
+    public static final String EMBED_MEDIA   = "embed_media";
+    public static final String IMAGE_SIZE    = "image_size";
+    public static final String IMAGE_QUALITY = "image_quality";
+    // images of a BODY rendered by the service, one "url key" per line,
+    // the keys of their MediaCache entries
+    public static final String MEDIA         = "media";
+
+    private static final String[] FIELDS = {
+        NOTEBOOK, NOTEBOOK_GUID, TAGS, TITLE, BODY, URL,
+        TWEET_TEXT, TWEET_ID, SCREEN_NAME, USER_NAME, PROFILE_IMAGE, CREATED_AT, SOURCE
+    };
+
+    private long mId;
+    private int mAttempts;
+    private long mNextAttemptAt;
+    private final LinkedHashMap<String, String> mFields = new LinkedHashMap<String, String>();
+
+    public Clip() {
+    }
+
+    public static boolean isClip(Intent intent) {
+        return intent != null && (intent.hasExtra(BODY) || intent.hasExtra(TWEET_TEXT));
+    }
+
+    public static Clip fromIntent(Intent intent) {
+        Clip clip = new Clip();
+        for (int i = 0; i < FIELDS.length; i++) {
+            clip.put(FIELDS[i], intent.getStringExtra(FIELDS[i]));
+        }
+        return clip;
+    }
+
+    /**
+     * Whether the note content still has to be rendered from the tweet.
+     */
+    public boolean isRaw() {
+        return !mFields.containsKey(BODY) && mFields.containsKey(TWEET_TEXT);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    void setId(long id) {
+        mId = id;
+    }
+
+    /**
+     * Number of failed upload attempts so far.
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * Wall clock time before which the clip should not be retried.
+     */
+    public long getNextAttemptAt() {
+        return mNextAttemptAt;
+    }
+
+    void setRetry(int attempts, long nextAttemptAt) {
+        mAttempts = attempts;
+        mNextAttemptAt = nextAttemptAt;
+    }
+
+    public String get(String key) {
+        String value = mFields.get(key);
+        return value != null ? value : "";
+    }
+
+    public void put(String key, String value) {
+        if (value == null) {
+            mFields.remove(key);
+        } else {
+            mFields.put(key, value);
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(mId);
+        out.writeInt(mFields.size());
+        Iterator<Map.Entry<String, String>> itr = mFields.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, String> entry = itr.next();
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    static Clip readFrom(DataInputStream in) throws IOException {
+        Clip clip = new Clip();
+        clip.mId = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            clip.mFields.put(key, readString(in));
+        }
+        return clip;
+    }
+
+    // writeUTF() is limited to 64KB, which a long note body can exceed.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
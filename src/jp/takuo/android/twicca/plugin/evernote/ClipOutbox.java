@@ -0,0 +1,306 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Durable, append-only journal of clips which are not uploaded yet.
+ *
+ * Every record is framed as [length][type][payload][crc32]. A clip is
+ * appended and fsync'ed before any network work starts; concurrent
+ * appends share a single fsync (group commit). Uploaded clips are
+ * acknowledged with an ACK record and dropped on the next compaction.
+ * Retry state is journaled with RETRY records, so backoff survives a
+ * process restart. A clip whose fields changed is appended again under
+ * its ID, and replaces the earlier record on replay.
+ * A torn record at the tail, left by a crash, is truncated on open.
+ */
+public class ClipOutbox {
+    private static final String LOG_TAG = "ClipOutbox";
+
+    private static final String OUTBOX_FILE = "outbox";
+    private static final byte TYPE_CLIP = 1;
+    private static final byte TYPE_ACK  = 2;
+    private static final byte TYPE_RETRY = 3;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    // rewrite the journal once this many acknowledged records piled up
+    private static final int COMPACT_THRESHOLD = 32;
+
+    private static ClipOutbox sInstance;
+
+    private final File mFile;
+    private final LinkedHashMap<Long, Clip> mPending = new LinkedHashMap<Long, Clip>();
+    private final Object mSyncLock = new Object();
+    private FileOutputStream mFileStream;
+    private DataOutputStream mOut;
+    private long mNextId = 1;
+    private int mAcked = 0;
+    private long mWritten = 0; // records written, guarded by this
+    private long mSynced = 0;  // records known to be on disk, guarded by mSyncLock
+
+    public static synchronized ClipOutbox getInstance(Context context) throws IOException {
+        if (sInstance == null) {
+            sInstance = new ClipOutbox(new File(context.getFilesDir(), OUTBOX_FILE));
+        }
+        return sInstance;
+    }
+
+    private ClipOutbox(File file) throws IOException {
+        mFile = file;
+        replay();
+        openForAppend();
+    }
+
+    /**
+     * Appends the clip to the journal and returns once it is on disk.
+     */
+    public long append(Clip clip) throws IOException {
+        long seq;
+        synchronized (this) {
+            clip.setId(mNextId++);
+            writeRecord(TYPE_CLIP, clipPayload(clip));
+            mPending.put(clip.getId(), clip);
+            seq = ++mWritten;
+        }
+        sync(seq);
+        return clip.getId();
+    }
+
+    /**
+     * Marks the clip as uploaded.
+     */
+    public void ack(long id) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (mPending.remove(id) == null) return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+            new DataOutputStream(bytes).writeLong(id);
+            writeRecord(TYPE_ACK, bytes.toByteArray());
+            mAcked++;
+            seq = ++mWritten;
+        }
+        sync(seq);
+        compact();
+    }
+
+    /**
+     * Records a failed attempt and the time of the next one.
+     */
+    public void reschedule(Clip clip, int attempts, long nextAttemptAt) throws IOException {
+        long seq;
+        synchronized (this) {
+            Clip pending = mPending.get(clip.getId());
+            if (pending == null) return;
+            pending.setRetry(attempts, nextAttemptAt);
+            clip.setRetry(attempts, nextAttemptAt);
+            writeRecord(TYPE_RETRY, retryPayload(pending));
+            seq = ++mWritten;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Journals the changed fields of a pending clip, e.g. the note
+     * rendered for it, in place of the ones it was appended with.
+     */
+    public void update(Clip clip) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!mPending.containsKey(clip.getId())) return;
+            writeRecord(TYPE_CLIP, clipPayload(clip));
+            if (clip.getAttempts() > 0) {
+                writeRecord(TYPE_RETRY, retryPayload(clip));
+            }
+            mPending.put(clip.getId(), clip);
+            seq = ++mWritten;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Returns the pending clips, oldest first.
+     */
+    public synchronized List<Clip> getPending() {
+        return new ArrayList<Clip>(mPending.values());
+    }
+
+    /**
+     * Returns whether the clip is still waiting for its upload.
+     */
+    public synchronized boolean isPending(long id) {
+        return mPending.containsKey(id);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    private void sync(long seq) throws IOException {
+        synchronized (mSyncLock) {
+            if (mSynced >= seq) return; // covered by another thread's fsync
+            long target;
+            synchronized (this) {
+                mOut.flush();
+                target = mWritten;
+            }
+            mFileStream.getFD().sync();
+            mSynced = target;
+        }
+    }
+
+    private void writeRecord(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        mOut.writeInt(payload.length + 1);
+        mOut.writeByte(type);
+        mOut.write(payload);
+        mOut.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] clipPayload(Clip clip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        clip.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] retryPayload(Clip clip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(clip.getId());
+        out.writeInt(clip.getAttempts());
+        out.writeLong(clip.getNextAttemptAt());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void replay() throws IOException {
+        if (!mFile.exists()) return;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_RECORD_SIZE) break;
+                byte type = in.readByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (type == TYPE_CLIP) {
+                    Clip clip = Clip.readFrom(record);
+                    mPending.put(clip.getId(), clip);
+                    if (clip.getId() >= mNextId) mNextId = clip.getId() + 1;
+                } else if (type == TYPE_ACK) {
+                    mPending.remove(record.readLong());
+                    mAcked++;
+                } else if (type == TYPE_RETRY) {
+                    Clip clip = mPending.get(record.readLong());
+                    int attempts = record.readInt();
+                    long nextAttemptAt = record.readLong();
+                    if (clip != null) clip.setRetry(attempts, nextAttemptAt);
+                }
+                valid += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // torn tail
+        } finally {
+            in.close();
+        }
+        if (valid < mFile.length()) {
+            Log.w(LOG_TAG, "Truncating damaged outbox at " + valid);
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(valid);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        Log.d(LOG_TAG, "Replayed outbox: " + mPending.size() + " pending");
+    }
+
+    private void openForAppend() throws IOException {
+        mFileStream = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileStream));
+    }
+
+    private void compact() throws IOException {
+        // lock order is always mSyncLock, then this
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                if (mAcked < COMPACT_THRESHOLD && !(mPending.isEmpty() && mAcked > 0)) return;
+                File temp = new File(mFile.getPath() + ".tmp");
+                FileOutputStream fos = new FileOutputStream(temp);
+                DataOutputStream live = mOut;
+                mOut = new DataOutputStream(new BufferedOutputStream(fos));
+                try {
+                    Iterator<Clip> itr = mPending.values().iterator();
+                    while (itr.hasNext()) {
+                        Clip clip = itr.next();
+                        writeRecord(TYPE_CLIP, clipPayload(clip));
+                        if (clip.getAttempts() > 0) {
+                            writeRecord(TYPE_RETRY, retryPayload(clip));
+                        }
+                    }
+                    mOut.flush();
+                    fos.getFD().sync();
+                    mOut.close();
+                } catch (IOException e) {
+                    mOut.close();
+                    mOut = live;
+                    temp.delete();
+                    throw e;
+                }
+                live.close();
+                boolean renamed = temp.renameTo(mFile);
+                openForAppend();
+                if (!renamed) {
+                    temp.delete();
+                    throw new IOException("Failed to replace " + mFile);
+                }
+                mAcked = 0;
+                mSynced = mWritten;
+            }
+        }
+    }
+}
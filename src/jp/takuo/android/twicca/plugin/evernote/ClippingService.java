@@ -16,12 +16,21 @@
 
 package jp.takuo.android.twicca.plugin.evernote;
 
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.thrift.transport.TTransportException;
 
 import com.evernote.client.conn.ApplicationInfo;
+import com.evernote.client.oauth.android.AuthenticationResult;
 import com.evernote.client.oauth.android.EvernoteSession;
 import com.evernote.edam.error.EDAMErrorCode;
 import com.evernote.edam.error.EDAMNotFoundException;
@@ -29,24 +38,28 @@ import com.evernote.edam.error.EDAMUserException;
 import com.evernote.edam.notestore.NoteStore;
 import com.evernote.edam.type.Note;
 import com.evernote.edam.type.NoteAttributes;
-import com.evernote.edam.type.Notebook;
 import com.evernote.edam.type.Tag;
 
-import android.app.AlertDialog;
-import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
-public class ClippingService extends IntentService {
+public class ClippingService extends Service implements UploadEngine.Callback {
     private Context mContext;
 
     private static final String LOG_TAG = "ClippingService";
     public static final String CONSUMER_KEY = "northeye-7638";
     public static final String CONSUMER_SECRET = "";
-    private String mToastMessage = null;
 
     // Change this value to "www.evernote.com" to use the Evernote production
     // server instead of the sandbox server.
@@ -56,204 +69,602 @@ public class ClippingService extends IntentService {
     public static final String USERSTORE_URL = "https://" + EVERNOTE_HOST + "/edam/user";
     public static final String NOTESTORE_URL_BASE = "https://" + EVERNOTE_HOST + "/edam/note/";
 
-    private Hashtable<String, String> mNoteTable;
-    private EvernoteSession mSession;
-    private String mAuthToken;
-    // Client classes used to interact with the Evernote web service
-    private NoteStore.Client mNoteStore;
-    private List<Notebook> mNotebooks;
-
-    /* from Intent */
-    private String mNotebookName;
-    private String mTags;
-    private String mNoteTitle;
-    private String mBodyText;
-    private String mTweetURL;
+    private volatile EvernoteSession mSession;
+    private volatile String mAuthToken;
+
     private Handler mHandler;
     private ECacheManager cacheManager;
+    // journals incoming clips off the main thread
+    private ExecutorService mIntake;
+    private UploadEngine mEngine;
+    private ClipOutbox mOutbox;
+    private RetryScheduler mRetry;
+    private volatile int mLastStartId;
+    /* the ID of the last clip which is not in the outbox, counting down */
+    private long mUnjournaledId;
 
-    public ClippingService(String name) {
-        super(name);
-    }
+    // wait this long after the last upload, so a burst refreshes once
+    private static final long REFRESH_DELAY = 10 * 1000;
+    private MetadataMirror mMirror;
+    private NotebookResolver mResolver;
+    private ProvisionalNotebooks mProvisional;
+    private MediaFetcher mFetcher;
+    private final SingleFlight<String, String> mTagFlight = new SingleFlight<String, String>();
+    private final Runnable mRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            final int startId = mLastStartId;
+            mIntake.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reloadSession();
+                    if (getAuthToken() != null) {
+                        refreshAuth();
+                    }
+                    stopWhenIdle(startId);
+                }
+            });
+        }
+    };
 
-    public ClippingService () {
-        super("ClippingService");
-        mHandler = new Handler();
+    /* per clip state, a clip is uploaded on one worker thread */
+    private static class Job {
+        final Clip mClip;
+        final String mNotebookName;
+        final String mNotebookGuid;
+        String mTags;
+        final String mNoteTitle;
+        String mBodyText;
+        final String mTweetURL;
+        // fetched images, null where one failed
+        MediaFile[] mMedia;
+        // whether the note was rendered by this attempt
+        boolean mRendered;
+        NoteStore.Client mNoteStore;
+        String mToastMessage;
+        // createNote is not idempotent
+        boolean mNoteSent;
+        boolean mClipped;
+
+        Job(Clip clip) {
+            mClip         = clip;
+            mNotebookName = clip.get(Clip.NOTEBOOK);
+            mNotebookGuid = clip.get(Clip.NOTEBOOK_GUID);
+            mTags         = clip.get(Clip.TAGS);
+            mNoteTitle    = clip.get(Clip.TITLE);
+            mBodyText     = clip.get(Clip.BODY);
+            mTweetURL     = clip.get(Clip.URL);
+        }
     }
 
     private boolean refreshAuth() {
         try {
-            List<Tag> tags = getNoteStore().listTags(getAuthToken());
-            cacheManager.writeTagsCache(tags);
-            if (mNotebooks == null) {
-                mNotebooks = getNoteStore().listNotebooks(getAuthToken());
-            }
-            cacheManager.writeNoteCache(mNotebooks);
+            mMirror.sync(mSession.createNoteStore(), getAuthToken(), getUserId(), false);
             return true;
         } catch (EDAMUserException ex) {
-            Log.e(LOG_TAG, mToastMessage, ex);
+            Log.e(LOG_TAG, "Failed to refresh cache", ex);
             return false;
         } catch (Exception e)  {
             return false;
         } // try
     }
 
-    private void setupSession() {
+    private EvernoteSession setupSession() {
         ApplicationInfo info =
                 new ApplicationInfo(ClippingService.CONSUMER_KEY,
                         ClippingService.CONSUMER_SECRET, ClippingService.EVERNOTE_HOST,
                         ClippingService.APP_NAME,ClippingService.APP_VERSION);
-        mSession = new EvernoteSession(info, getSharedPreferences(TwiccaPluginSettings.SHARED_PREF, MODE_PRIVATE), getFilesDir());
+        return new EvernoteSession(info, getSharedPreferences(TwiccaPluginSettings.SHARED_PREF, MODE_PRIVATE), getFilesDir());
+    }
+
+    // the service outlives a logout or a login in the settings, so the
+    // saved session is read again before each drain.
+    private void reloadSession() {
+        EvernoteSession session = setupSession();
+        String token = session.getAuthToken();
+        if (token == null ? mAuthToken == null : token.equals(mAuthToken)) return;
+        mSession = session;
+        mAuthToken = token;
+        mEngine.setSession(session);
     }
-    
+
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public void onCreate() {
+        super.onCreate();
         mContext = getApplicationContext();
+        mHandler = new Handler();
         cacheManager = new ECacheManager(mContext);
-        mNoteTable = cacheManager.getNoteTable();
-        mNotebookName     = intent.getStringExtra("notebook");
-        mTags             = intent.getStringExtra("tags");
-        mNoteTitle        = intent.getStringExtra("title");
-        mBodyText         = intent.getStringExtra(Intent.EXTRA_TEXT);
-        mTweetURL         = intent.getStringExtra("url");
+        mMirror = MetadataMirror.getInstance(mContext);
+        mResolver = new NotebookResolver(mContext);
+        mProvisional = ProvisionalNotebooks.getInstance(mContext);
+        mFetcher = new MediaFetcher(mContext);
+        mSession = setupSession();
+        mAuthToken = mSession.getAuthToken();
+        mIntake = Executors.newSingleThreadExecutor();
+        mEngine = new UploadEngine(mSession, this);
+        mRetry = new RetryScheduler(mContext);
+    }
 
-        setupSession();
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mRefreshTask);
+        mIntake.shutdown();
+        mEngine.shutdown();
+        super.onDestroy();
+    }
 
-        mAuthToken = mSession.getAuthToken();
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        mHandler.removeCallbacks(mRefreshTask);
+        mIntake.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleIntent(intent);
+            }
+        });
+        // restarted with a null intent after a kill, to drain the outbox.
+        return START_STICKY;
+    }
+
+    private void handleIntent(Intent intent) {
+        reloadSession();
+        // journal the clip before any network work, so that it survives
+        // a process kill or a failed upload.
+        try {
+            if (mOutbox == null) {
+                mOutbox = ClipOutbox.getInstance(mContext);
+            }
+            if (Clip.isClip(intent)) {
+                Clip clip = Clip.fromIntent(intent);
+                captureSettings(clip);
+                assignNotebook(clip);
+                mOutbox.append(clip);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Outbox is not available", e);
+            if (Clip.isClip(intent)) {
+                // upload this one directly, as before.
+                Clip clip = Clip.fromIntent(intent);
+                clip.setId(--mUnjournaledId);
+                captureSettings(clip);
+                mEngine.submit(clip);
+            }
+            return;
+        }
+
+        // submit the clips which are due, a clip waiting for its retry
+        // holds back the later clips to the same notebook.
+        List<Clip> pending = mOutbox.getPending();
+        HashSet<String> waiting = new HashSet<String>();
+        HashSet<String> notebooks = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        boolean submitted = false;
+        Iterator<Clip> itr = pending.iterator();
+        while (itr.hasNext()) {
+            Clip clip = itr.next();
+            notebooks.add(clip.get(Clip.NOTEBOOK_GUID));
+            String lane = UploadEngine.getLane(clip);
+            if (waiting.contains(lane)) continue;
+            if (clip.getNextAttemptAt() > now) {
+                waiting.add(lane);
+                continue;
+            }
+            mEngine.submit(clip);
+            submitted = true;
+        }
+        mProvisional.retain(notebooks);
+        mRetry.scheduleWakeup(pending);
+        if (!submitted) stopWhenIdle(mLastStartId);
+    }
+
+    // a raw tweet is rendered later, maybe after the settings changed,
+    // so it keeps the ones it was clipped with; its tags are final here.
+    private void captureSettings(Clip clip) {
+        if (!clip.isRaw()) return;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        clip.put(Clip.LAYOUT, prefs.getString(TwiccaEvernoteUploader.PREF_NOTE_LAYOUT, NoteTemplate.LAYOUT_CARD));
+        clip.put(Clip.EMBED_AVATAR,
+                String.valueOf(prefs.getBoolean(TwiccaEvernoteUploader.PREF_EMBED_AVATAR, false)));
+        clip.put(Clip.EMBED_MEDIA,
+                String.valueOf(prefs.getBoolean(TwiccaEvernoteUploader.PREF_EMBED_MEDIA, false)));
+        clip.put(Clip.IMAGE_SIZE, prefs.getString(TwiccaEvernoteUploader.PREF_IMAGE_SIZE,
+                String.valueOf(MediaShrinker.DEFAULT_SIZE)));
+        clip.put(Clip.IMAGE_QUALITY, prefs.getString(TwiccaEvernoteUploader.PREF_IMAGE_QUALITY,
+                String.valueOf(MediaShrinker.DEFAULT_QUALITY)));
+        String tags = clip.get(Clip.TAGS);
+        if (prefs.getBoolean(TwiccaEvernoteUploader.PREF_HASHTAG_CLIPTAG, false)) {
+            tags = TwiccaEvernoteUploader.addTags(tags,
+                    TweetEntities.extract(clip.get(Clip.TWEET_TEXT)).getHashtags());
+        }
+        if (prefs.getBoolean(TwiccaEvernoteUploader.PREF_NAME_CLIPTAG, false)) {
+            ArrayList<String> name = new ArrayList<String>();
+            name.add(clip.get(Clip.SCREEN_NAME));
+            tags = TwiccaEvernoteUploader.addTags(tags, name);
+        }
+        clip.put(Clip.TAGS, tags);
+    }
+
+    // a notebook which is not known yet gets a provisional ID, so it
+    // does not need to exist before the clip is queued.
+    private void assignNotebook(Clip clip) {
+        String name = clip.get(Clip.NOTEBOOK);
+        if (clip.get(Clip.NOTEBOOK_GUID).length() > 0 || name.length() == 0) return;
+        if (mResolver.find(name) == null) {
+            clip.put(Clip.NOTEBOOK_GUID, mProvisional.register(name));
+        }
+    }
+
+    @Override
+    public boolean onUpload(Clip clip) {
+        // a snapshot of the outbox may still hold a clip acked since, the
+        // outbox drops it before the engine lets it be queued again.
+        if (mOutbox != null && clip.getId() > 0 && !mOutbox.isPending(clip.getId())) {
+            return true;
+        }
+        boolean settled = uploadClip(clip);
+        if (mOutbox == null) return settled;
+        try {
+            if (settled) {
+                mOutbox.ack(clip.getId());
+            } else if (clip.getNextAttemptAt() > System.currentTimeMillis()) {
+                mRetry.scheduleWakeup(mOutbox.getPending());
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to update clip " + clip.getId(), e);
+        }
+        return settled;
+    }
+
+    @Override
+    public void onIdle() {
+        // coalesce the refresh of a whole burst into one.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mRefreshTask);
+                mHandler.postDelayed(mRefreshTask, REFRESH_DELAY);
+            }
+        });
+    }
+
+    private void stopWhenIdle(final int startId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // ignored if another intent arrived in the meantime.
+                stopSelf(startId);
+            }
+        });
+    }
 
-        doEvernoteApi();
+    /**
+     * Returns true once the clip reached a final state, clipped or
+     * rejected, and false if it is kept in the outbox for a retry.
+     */
+    private boolean uploadClip(Clip clip) {
+        Job job = new Job(clip);
+        boolean settled = true;
+
+        try {
+            job.mNoteStore = mEngine.getNoteStore();
+            doUpload(job);
+        } catch (EDAMUserException eue) {
+            job.mToastMessage = null;
+            if (eue.isSetErrorCode() && eue.getErrorCode() == EDAMErrorCode.AUTH_EXPIRED) {
+                // Token EXPIRED
+                Intent intent = new Intent(this, TwiccaPluginSettings.class);
+                intent.putExtra("reset_auth", true);
+                intent.setAction(Intent.ACTION_MAIN);
+                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                startActivity(intent);
+                // keep the clip until authorized again.
+                settled = false;
+            }
+            // otherwise rejected by the server, retrying will not help.
+        } catch (IllegalStateException ise) {
+            // not logged in: keep the clip until authorized again, as above.
+            Log.e(LOG_TAG, "Not logged in", ise);
+            job.mToastMessage = getString(R.string.message_error_auth);
+            settled = false;
+        } catch (Exception e) {
+            if (e instanceof TTransportException) {
+                mEngine.resetNoteStore();
+                job.mToastMessage = getString(R.string.message_error_server) + "\n" + e.getMessage();
+            } else {
+                job.mToastMessage = getString(R.string.message_error_unknown);
+            }
+            Log.e(LOG_TAG, job.mToastMessage, e);
+            int attempts = clip.getAttempts() + 1;
+            if (mRetry.isRetryable(e, job.mNoteSent) && mRetry.hasBudget(attempts)) {
+                settled = scheduleRetry(job, attempts, e);
+            }
+        } finally {
+            releaseMedia(job);
+        }
+        if (settled && !job.mClipped) notifyFailed(job);
 
+        final String message = job.mToastMessage;
         mHandler.post(new Runnable() {
             @Override
             public void run () {
-                if (mToastMessage != null) {
-                    Toast.makeText(mContext, mToastMessage, Toast.LENGTH_LONG).show();
+                if (message != null) {
+                    Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
                 }
             }
         });
-        if (getAuthToken() != null) {
-            refreshAuth();
+        return settled;
+    }
+
+    // the clip is dropped, tell which tweet it was so that it can be
+    // clipped again; the notification opens the tweet.
+    private void notifyFailed(Job job) {
+        String title = getString(R.string.message_clip_failed);
+        Intent intent = job.mTweetURL.length() > 0
+                ? new Intent(Intent.ACTION_VIEW, Uri.parse(job.mTweetURL)) : new Intent();
+        PendingIntent content = PendingIntent.getActivity(mContext, 0, intent, 0);
+        Notification notification = new Notification(R.drawable.icon, title + ": " + job.mNoteTitle,
+                System.currentTimeMillis());
+        notification.flags |= Notification.FLAG_AUTO_CANCEL;
+        notification.setLatestEventInfo(mContext, title, job.mNoteTitle, content);
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        // one per clip
+        manager.notify((int) job.mClip.getId(), notification);
+    }
+
+    private boolean scheduleRetry(Job job, int attempts, Throwable t) {
+        long delay = mRetry.getDelay(attempts, t);
+        try {
+            mOutbox.reschedule(job.mClip, attempts, System.currentTimeMillis() + delay);
+        } catch (Exception e) {
+            // without the journal a retry would not be remembered.
+            Log.e(LOG_TAG, "Failed to schedule retry", e);
+            return true;
         }
+        if (job.mRendered) keepRendered(job);
+        Log.d(LOG_TAG, "Retry #" + attempts + " in " + delay + "ms");
+        // tell once, the clip is not lost.
+        job.mToastMessage = attempts == 1 ? getString(R.string.message_retry_later) : null;
+        return false;
     }
 
-    private void doEvernoteApi() {
-        for (int i=0; i<5;i++) {
-            try {
-                mNoteStore = mSession.createNoteStore();
-                doUpload();
-                return; // escape from loop()
-            } catch (TTransportException e) {
-                mToastMessage = getString(R.string.message_error_server) + "\n" + e.getMessage();
-                Log.e(LOG_TAG, mToastMessage, e);
-            } catch (Throwable t) {
-                mToastMessage = getString(R.string.message_error_api);
-                Log.e(LOG_TAG, mToastMessage, t);
-            } // try
-        } // for loop (retry)
-    } // method
-
-    private Notebook createNotebook(String name) {
-        Log.d(LOG_TAG, "Create new notebook: '" + mNotebookName + "'");
-
-        Notebook notebook = new Notebook();
-        notebook.setName(mNotebookName);
-        for (int i = 0; i < 5 ; i++) { // retry count 5
-            try {
+    // known tags are sent by GUID, unknown ones are created first.
+    private void resolveTags(Job job, Note note) throws Exception {
+        for (String name : job.mTags.split(", *")) {
+            name = name.trim();
+            if (name.length() == 0) continue;
+            String guid = findTag(name);
+            if (guid == null) {
+                guid = createTag(job, name);
+            }
+            if (guid == null) {
+                note.addToTagNames(name);
+            } else if (!note.isSetTagGuids() || !note.getTagGuids().contains(guid)) {
+                note.addToTagGuids(guid);
+            }
+        }
+    }
+
+    // concurrent clips with the same new tag create it only once.
+    private String createTag(final Job job, final String name) throws Exception {
+        return mTagFlight.run(MetadataCache.fold(name), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // created by another clip since we looked
+                String guid = findTag(name);
+                if (guid != null) return guid;
+
+                Log.d(LOG_TAG, "Create new tag: '" + name + "'");
+                Tag tag = new Tag();
+                tag.setName(name);
                 try {
-                    notebook = getNoteStore().createNotebook(getAuthToken(), notebook);
-                    mNoteTable.put(mNotebookName.toLowerCase(), notebook.getGuid());
+                    tag = job.mNoteStore.createTag(getAuthToken(), tag);
                 } catch (EDAMUserException e) {
-                    // maybe already exists.
-                    notebook = null;
+                    // maybe already exists, createNote resolves it by name.
+                    return null;
                 }
-                if (notebook == null) {
-                    Log.d(LOG_TAG, "Retrieve notebook list...");
-                    mNotebooks = getNoteStore().listNotebooks(getAuthToken());
-                    for (Notebook n : mNotebooks) {
-                        if (mNotebookName.equalsIgnoreCase(n.getName())) {
-                            notebook = n;
-                            break;
-                        } // if
-                    } // for
-                } // notebook == null
-                return notebook;
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "Error: " + e.getMessage());
+                mMirror.tagCreated(tag);
+                return tag.getGuid();
             }
+        });
+    }
+
+    // a tag created since the last sync is not in the cache yet.
+    private String findTag(String name) {
+        String guid = mMirror.findCreated(MetadataCache.TAGS, name);
+        if (guid != null) return guid;
+        MetadataCache cache = cacheManager.getMetadata();
+        int i = cache.find(MetadataCache.TAGS, name);
+        return i >= 0 ? cache.getGuid(MetadataCache.TAGS, i) : null;
+    }
+
+    // binds a provisional notebook to the GUID it resolved to.
+    private String resolveNotebook(Job job, String staleGuid) throws Exception {
+        String guid = mResolver.resolve(job.mNoteStore, getAuthToken(), getUserId(), job.mNotebookName, staleGuid);
+        if (guid != null && ProvisionalNotebooks.isProvisional(job.mNotebookGuid)) {
+            mProvisional.bind(job.mNotebookGuid, guid);
         }
-        return null;
+        return guid;
     }
 
-    private void doUpload() {
-        if (getNoteStore() == null) return;
-        for (int i = 0; i < 5; i++) {
-            try {
-                String guid = null;
-                Notebook notebook = null;
-                Note note = new Note();
-                if (mNotebookName.length() > 0) {
-                    Log.d(LOG_TAG, "Search notebook from cache: '" + mNotebookName + "'");
-                    if (mNoteTable.containsKey(mNotebookName.toLowerCase())) {
-                        guid = mNoteTable.get(mNotebookName.toLowerCase());
-                    } else {
-                        notebook = createNotebook(mNotebookName);
-                        if (notebook != null) guid = notebook.getGuid();
-                    } // mNoteTable...
-                } // mEvernoteNotebook != ""
-                Log.d(LOG_TAG, "Clipping the note...");
-
-                note.setTitle(mNoteTitle);
-                if (mTags.length() > 0) {
-                    note.setTagNames(java.util.Arrays.asList(mTags.split(", *")));
-                } // if
-                if (guid != null) {
-                    note.setNotebookGuid(guid);
-                } // if
-                note.setContent(mBodyText);
-                NoteAttributes attrs = new NoteAttributes();
-                attrs.setSourceURL(mTweetURL);
-                note.setAttributes(attrs);
-                try {
-                    getNoteStore().createNote(getAuthToken(), note);
-                } catch (EDAMNotFoundException ee) {
-                    notebook = createNotebook(mNotebookName);
-                    if (notebook != null) {
-                        note.setNotebookGuid(notebook.getGuid());
-                    } else {
-                        note.setNotebookGuid(null);
-                    }
-                    getNoteStore().createNote(getAuthToken(), note);
-                }
-                mToastMessage = getString(R.string.message_clipped) + ": " + mNoteTitle;
-                Log.d(LOG_TAG, "done clipping");
-                return;
-            } catch (EDAMUserException eue) {
-                mToastMessage = null;
-                if (eue.isSetErrorCode() && eue.getErrorCode() == EDAMErrorCode.AUTH_EXPIRED) {
-                    // Token EXPIRED
-                    Intent intent = new Intent(this, TwiccaPluginSettings.class);
-                    intent.putExtra("reset_auth", true);
-                    intent.setAction(Intent.ACTION_MAIN);
-                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    startActivity(intent);
+    // renders a clip handed over as raw tweet fields, on the worker so
+    // that neither the dialog nor the Intent carries the note.
+    private void render(Job job) {
+        Clip clip = job.mClip;
+        if (clip.get(Clip.LAYOUT).length() == 0) {
+            // journaled by an older version, before the settings were kept
+            captureSettings(clip);
+            job.mTags = clip.get(Clip.TAGS);
+        }
+        TweetEntities entities = TweetEntities.extract(clip.get(Clip.TWEET_TEXT));
+        NoteTemplate template = NoteTemplate.get(clip.get(Clip.LAYOUT));
+        String avatarUrl = clip.get(Clip.PROFILE_IMAGE);
+        // a layout without the profile image would only carry it unseen
+        boolean embedAvatar = Boolean.parseBoolean(clip.get(Clip.EMBED_AVATAR))
+                && template.hasAvatar() && avatarUrl.length() > 0;
+        ArrayList<String> urls = new ArrayList<String>();
+        if (embedAvatar) urls.add(avatarUrl);
+        if (Boolean.parseBoolean(clip.get(Clip.EMBED_MEDIA))) {
+            urls.addAll(entities.getImageUrls());
+        }
+        // an image which failed stays a link
+        MediaFile avatar = null;
+        HashMap<String, MediaFile> media = new HashMap<String, MediaFile>();
+        if (!urls.isEmpty()) {
+            MediaPipeline pipeline = new MediaPipeline(new MediaShrinker(mContext, mFetcher,
+                    MediaShrinker.parse(clip.get(Clip.IMAGE_SIZE), MediaShrinker.DEFAULT_SIZE),
+                    MediaShrinker.parse(clip.get(Clip.IMAGE_QUALITY), MediaShrinker.DEFAULT_QUALITY)));
+            job.mMedia = pipeline.fetchAll(urls);
+            for (int i = 0; i < urls.size(); i++) {
+                if (job.mMedia[i] == null) continue;
+                if (embedAvatar && i == 0) {
+                    avatar = job.mMedia[i];
                 } else {
-                    // failed to auth,
+                    media.put(urls.get(i), job.mMedia[i]);
                 }
-            } catch (TTransportException e) {
-                mToastMessage = getString(R.string.message_error_server) + "\n" + e.getMessage();
-                Log.e(LOG_TAG, mToastMessage, e);
-            } catch (Exception e) {
-                mToastMessage = getString(R.string.message_error_unknown);
-                Log.e(LOG_TAG, mToastMessage, e);
-            } // try
-        } // while
+            }
+        }
+        job.mBodyText = template.render(clip, entities, avatar, media);
+        job.mRendered = true;
+    }
+
+    // journals the rendered note, so that a retry sends it as it is
+    // instead of fetching the images and rendering again.
+    private void keepRendered(Job job) {
+        StringBuilder list = new StringBuilder();
+        if (job.mMedia != null) {
+            for (MediaFile media : job.mMedia) {
+                if (media == null) continue;
+                // not in the cache, it could not be found again
+                if (media.getEntry() == null) return;
+                if (list.length() > 0) list.append('\n');
+                list.append(media.getUrl()).append(' ').append(media.getEntry().mUrl);
+            }
+        }
+        Clip clip = job.mClip;
+        clip.put(Clip.BODY, job.mBodyText);
+        clip.put(Clip.MEDIA, list.length() > 0 ? list.toString() : null);
+        try {
+            mOutbox.update(clip);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to keep the rendered note", e);
+            clip.put(Clip.BODY, null);
+            clip.put(Clip.MEDIA, null);
+        }
+    }
+
+    // pins the images of a note rendered by an earlier attempt, false if
+    // one of them is no longer cached.
+    private boolean restoreMedia(Job job) {
+        String list = job.mClip.get(Clip.MEDIA);
+        if (list.length() == 0) return true;
+        MediaCache cache = MediaCache.getInstance(mContext);
+        String[] lines = list.split("\n");
+        job.mMedia = new MediaFile[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            int space = lines[i].indexOf(' ');
+            MediaCache.Entry entry = space < 0 ? null : cache.get(lines[i].substring(space + 1));
+            if (entry == null) return false;
+            job.mMedia[i] = cache.toMediaFile(entry).withUrl(lines[i].substring(0, space));
+        }
+        return true;
+    }
+
+    private void releaseMedia(Job job) {
+        if (job.mMedia == null) return;
+        for (MediaFile media : job.mMedia) {
+            if (media != null) mFetcher.release(media);
+        }
+        job.mMedia = null;
     }
 
-    private NoteStore.Client getNoteStore() {
-        return this.mNoteStore;
+    private void doUpload(Job job) throws Exception {
+        if (!job.mClip.isRaw() && !restoreMedia(job)) {
+            Log.d(LOG_TAG, "Images of the kept note are gone, render it again");
+            releaseMedia(job);
+            job.mClip.put(Clip.BODY, null);
+            job.mClip.put(Clip.MEDIA, null);
+        }
+        if (job.mClip.isRaw()) {
+            render(job);
+        }
+        String error = EnmlValidator.check(job.mBodyText);
+        if (error != null) {
+            // the server would reject it on every attempt.
+            Log.e(LOG_TAG, "Invalid ENML: " + error);
+            job.mToastMessage = getString(R.string.message_error_content);
+            return;
+        }
+        String guid = null;
+        Note note = new Note();
+        if (ProvisionalNotebooks.isProvisional(job.mNotebookGuid)) {
+            guid = mProvisional.getGuid(job.mNotebookGuid);
+            if (guid == null) {
+                guid = resolveNotebook(job, null);
+            }
+        } else if (job.mNotebookGuid.length() > 0) {
+            // picked from the list, no lookup needed.
+            guid = job.mNotebookGuid;
+        } else if (job.mNotebookName.length() > 0) {
+            guid = mResolver.resolve(job.mNoteStore, getAuthToken(), getUserId(), job.mNotebookName, null);
+        } // mEvernoteNotebook != ""
+        Log.d(LOG_TAG, "Clipping the note...");
+
+        note.setTitle(job.mNoteTitle);
+        if (job.mTags.length() > 0) {
+            resolveTags(job, note);
+        } // if
+        if (guid != null) {
+            note.setNotebookGuid(guid);
+        } // if
+        note.setContent(job.mBodyText);
+        if (job.mMedia != null) {
+            HashSet<String> hashes = new HashSet<String>();
+            for (int i = 0; i < job.mMedia.length; i++) {
+                MediaFile media = job.mMedia[i];
+                if (media != null && hashes.add(media.getHashHex())) {
+                    note.addToResources(media.toResource());
+                }
+            }
+        }
+        NoteAttributes attrs = new NoteAttributes();
+        attrs.setSourceURL(job.mTweetURL);
+        note.setAttributes(attrs);
+        try {
+            job.mNoteSent = true;
+            note = job.mNoteStore.createNote(getAuthToken(), note);
+        } catch (EDAMNotFoundException ee) {
+            // the note was not created
+            job.mNoteSent = false;
+            if (ee.isSetIdentifier() && ee.getIdentifier().startsWith("Tag")) {
+                // a cached tag is gone, let the server resolve the names.
+                note.setTagGuids(null);
+                note.setTagNames(Arrays.asList(job.mTags.split(", *")));
+            } else if (job.mNotebookName.length() > 0) {
+                note.setNotebookGuid(resolveNotebook(job, guid));
+            } else {
+                note.setNotebookGuid(null);
+            }
+            job.mNoteSent = true;
+            note = job.mNoteStore.createNote(getAuthToken(), note);
+        }
+        job.mClipped = true;
+        mMirror.noteCreated(note.getUpdateSequenceNum());
+        job.mToastMessage = getString(R.string.message_clipped) + ": " + job.mNoteTitle;
+        Log.d(LOG_TAG, "done clipping");
     }
 
     private String getAuthToken() {
         return this.mAuthToken;
     }
+
+    private int getUserId() {
+        AuthenticationResult result = mSession.getAuthenticationResult();
+        return result != null ? result.getUserId() : 0;
+    }
 }
@@ -16,21 +16,30 @@
 
 package jp.takuo.android.twicca.plugin.evernote;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Hashtable;
-import java.util.List;
-import java.util.ListIterator;
-
-import com.evernote.edam.type.Notebook;
-import com.evernote.edam.type.Tag;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 public class ECacheManager {
@@ -39,8 +48,37 @@ public class ECacheManager {
 
     // filenames
     private static final String CACHE_TOKEN  = "token";
+    private static final String CACHE_METADATA = "metadata";
+    private static final String CACHE_LOCK = "metadata.lock";
+    // tags and notebooks created since the metadata was last written
+    private static final String CACHE_DELTA = "metadata.delta";
+    // text caches of older versions
     private static final String CACHE_TAGS   = "tags";
     private static final String CACHE_NOTES  = "notes";
+    private static final String CACHE_MIRROR = "mirror";
+
+    /**
+     * Notified on the main thread after the metadata cache was rewritten.
+     */
+    public interface OnMetadataChangedListener {
+        void onMetadataChanged();
+    }
+
+    // writes the content of a new metadata cache file
+    private interface MetadataWriter {
+        void write(OutputStream out, int generation) throws IOException;
+    }
+
+    // shared by the whole process, replaced as a whole on rewrite
+    private static final AtomicReference<MetadataCache> sMetadata = new AtomicReference<MetadataCache>();
+    // the single writer lane, the file lock covers other processes
+    private static final Object sWriteLock = new Object();
+    private static Thread sWriter;
+    private static final ArrayList<OnMetadataChangedListener> sListeners =
+            new ArrayList<OnMetadataChangedListener>();
+    private static Handler sHandler;
+    // whether the text caches of older versions are known to be gone
+    private static volatile boolean sLegacyDeleted;
 
     private Context mContext;
 
@@ -48,6 +86,29 @@ public class ECacheManager {
         mContext = context;
     }
 
+    public static void addOnMetadataChangedListener(OnMetadataChangedListener listener) {
+        synchronized (sListeners) {
+            if (!sListeners.contains(listener)) sListeners.add(listener);
+        }
+    }
+
+    public static void removeOnMetadataChangedListener(OnMetadataChangedListener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Drops the in-memory metadata, it is loaded again on next use.
+     */
+    public static void trimMemory() {
+        Log.d(LOG_TAG, "Release metadata cache");
+        sMetadata.set(null);
+    }
+
+    /**
+     * Deletes the token and metadata caches, when the account changes.
+     */
     public static void clear(File dir) {
         File file;
         file = new File(dir, CACHE_TOKEN);
@@ -56,6 +117,14 @@ public class ECacheManager {
         if (file.exists()) file.delete();
         file = new File(dir, CACHE_TAGS);
         if (file.exists()) file.delete();
+        file = new File(dir, CACHE_MIRROR);
+        if (file.exists()) file.delete();
+        file = new File(dir, CACHE_METADATA);
+        if (file.exists()) file.delete();
+        file = new File(dir, CACHE_DELTA);
+        if (file.exists()) file.delete();
+        sMetadata.set(null);
+        notifyChanged();
     }
 
     public String getAuthToken() {
@@ -75,103 +144,231 @@ public class ECacheManager {
         return null;
     }
 
+    /**
+     * Returns the current metadata, mapping the cache file on first use.
+     * The result is empty if there is none. Never blocks on writers.
+     */
+    public MetadataCache getMetadata() {
+        MetadataCache cache = sMetadata.get();
+        if (cache != null) return cache;
+        cache = MetadataCache.open(new File(mContext.getCacheDir(), CACHE_METADATA));
+        // a writer may have published a newer one meanwhile
+        if (sMetadata.compareAndSet(null, cache)) return cache;
+        MetadataCache current = sMetadata.get();
+        return current != null ? current : cache;
+    }
+
+    /**
+     * Runs the task as the only writer of the metadata cache, within this
+     * process and across processes. The writer first sees the latest file.
+     * The methods writing the cache must be called from such a task.
+     */
+    public <T> T runAsWriter(Callable<T> task) throws Exception {
+        synchronized (sWriteLock) {
+            if (sWriter == Thread.currentThread()) return task.call();
+            RandomAccessFile raf = new RandomAccessFile(new File(mContext.getCacheDir(), CACHE_LOCK), "rw");
+            FileLock lock = null;
+            try {
+                lock = raf.getChannel().lock();
+                // another process may have rewritten it
+                File file = new File(mContext.getCacheDir(), CACHE_METADATA);
+                MetadataCache cache = sMetadata.get();
+                if (cache == null || cache.getGeneration() != MetadataCache.readGeneration(file)) {
+                    sMetadata.set(MetadataCache.open(file));
+                }
+                sWriter = Thread.currentThread();
+                return task.call();
+            } finally {
+                sWriter = null;
+                if (lock != null) lock.release();
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the tag names in order. The array is shared, do not modify it.
+     */
     public String[] getTagNames() {
-        File file = new File(mContext.getCacheDir(), CACHE_TAGS);
-        if (! file.canRead()) return new String [] {};
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            String line = br.readLine();
-            String[] retval = line.split(",");
-            br.close();
-            return retval;
-        } catch (Exception e){
-            Log.d(LOG_TAG, "Tags Read error: " + e.getMessage());
+        return getMetadata().getSortedNames(MetadataCache.TAGS);
+    }
+
+    public ArrayList<NotebookRef> getNotebooks () {
+        MetadataCache cache = getMetadata();
+        int count = cache.getCount(MetadataCache.NOTEBOOKS);
+        ArrayList<NotebookRef> retval = new ArrayList<NotebookRef>(count);
+        for (int i = 0; i < count; i++) {
+            int entry = cache.getSorted(MetadataCache.NOTEBOOKS, i);
+            retval.add(new NotebookRef(cache.getGuid(MetadataCache.NOTEBOOKS, entry),
+                    cache.getName(MetadataCache.NOTEBOOKS, entry)));
         }
-        return new String [] {};
+        return retval;
     }
 
-    public Hashtable<String, String> getNoteTable () {
-        Hashtable<String, String> retval = new Hashtable<String, String>();
-        String line;
-        String[] pair;
-        File file = new File(mContext.getCacheDir(), CACHE_NOTES);
-        if (! file.canRead()) return retval;
+    /**
+     * Rewrites the metadata cache. The new file is written and synced
+     * aside and then renamed over the old one, so readers see either.
+     * Call from {@link #runAsWriter}.
+     *
+     * @return false if the old file was kept
+     */
+    public boolean writeMetadata(final int userId, final int updateCount, final long lastSyncTime,
+            final Map<String, String> notebooks, final Map<String, String> tags,
+            final Map<String, String> searches) {
+        Log.d(LOG_TAG, "Write metadata cache");
+        boolean written = replaceMetadata(new MetadataWriter() {
+            @Override
+            public void write(OutputStream out, int generation) throws IOException {
+                MetadataCache.write(out, generation, userId, updateCount, lastSyncTime,
+                        notebooks, tags, searches);
+            }
+        });
+        if (!written) return false;
+        if (!sLegacyDeleted) deleteLegacy(mContext.getCacheDir());
+        notifyChanged();
+        return true;
+    }
+
+    // writes the new file aside, syncs it and renames it over the old one
+    private boolean replaceMetadata(MetadataWriter writer) {
+        File file = new File(mContext.getCacheDir(), CACHE_METADATA);
+        File temp = new File(mContext.getCacheDir(), CACHE_METADATA + ".tmp");
         try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            line = br.readLine();
-            while (line != null) {
-                pair = line.split(",", 2);
-                retval.put(pair[1].toLowerCase(), pair[0]);
-                line = br.readLine();
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                BufferedOutputStream out = new BufferedOutputStream(fos);
+                int generation = getMetadata().getGeneration() + 1;
+                // a new file must not repeat the generation of a deleted one
+                if (generation == 1) generation = new Random().nextInt(Integer.MAX_VALUE / 2) + 1;
+                writer.write(out, generation);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
             }
-            br.close();
-            return retval;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+            // its CRC was computed as it was written
+            sMetadata.set(MetadataCache.open(file, false));
+            return true;
         } catch (Exception e){
-            Log.e(LOG_TAG, "Note Read error: " + e.getMessage());
-            e.printStackTrace();
+            Log.e(LOG_TAG, "Metadata Write error:" + e.getMessage());
+            temp.delete();
+            return false;
         }
-        return retval;
     }
 
-    public ArrayList<String> getNotebookNames () {
-        ArrayList<String> retval = new ArrayList<String>();
-        String line;
-        String[] pair;
-        File file = new File(mContext.getCacheDir(), CACHE_NOTES);
-        if (! file.canRead()) return retval;
+    // the binary cache replaces them, once it is written they are garbage
+    private static void deleteLegacy(File dir) {
+        String[] names = { CACHE_TAGS, CACHE_NOTES, CACHE_MIRROR };
+        boolean deleted = true;
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (file.exists() && !file.delete()) deleted = false;
+        }
+        sLegacyDeleted = deleted;
+    }
+
+    /**
+     * Updates the USN of an existing metadata cache. The file is copied
+     * and replaced like {@link #writeMetadata}, as a mapped cache never
+     * changes. Call from {@link #runAsWriter}.
+     */
+    public void writeUpdateCount(final int updateCount) {
+        final MetadataCache cache = getMetadata();
+        if (cache.getGeneration() == 0) return;
+        replaceMetadata(new MetadataWriter() {
+            @Override
+            public void write(OutputStream out, int generation) throws IOException {
+                cache.writeCopy(out, generation, updateCount);
+            }
+        });
+    }
+
+    /**
+     * Appends an entry we created to the delta file, a few bytes instead
+     * of rewriting the metadata. Call from {@link #runAsWriter}.
+     */
+    public void appendDelta(int userId, int section, String guid, String name) {
+        File file = new File(mContext.getCacheDir(), CACHE_DELTA);
         try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            line = br.readLine();
-            while (line != null) {
-                pair = line.split(",", 2);
-                retval.add(pair[1]);
-                line = br.readLine();
+            FileOutputStream fos = new FileOutputStream(file, true);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(userId);
+                out.writeByte(section);
+                out.writeUTF(guid);
+                out.writeUTF(name);
+                // one write, a torn record can only be the last one
+                fos.write(bytes.toByteArray());
+                fos.getFD().sync();
+            } finally {
+                fos.close();
             }
-            br.close();
         } catch (Exception e){
-            Log.e(LOG_TAG, "Note Read error: " + e.getMessage());
-            e.printStackTrace();
+            Log.e(LOG_TAG, "Delta Write error:" + e.getMessage());
         }
-        Collections.sort(retval);
-        return retval;
     }
 
-    public void writeTagsCache(List<Tag> tags) {
-        Log.d(LOG_TAG, "Write tags cache");
+    /**
+     * Reads the delta entries of the user into the guid to name maps.
+     */
+    public void readDelta(int userId, Map<String, String> notebooks, Map<String, String> tags) {
+        File file = new File(mContext.getCacheDir(), CACHE_DELTA);
+        if (! file.exists()) return;
+        DataInputStream in = null;
         try {
-            String tagString = "";
-            File file = new File(mContext.getCacheDir(), CACHE_TAGS);
-
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            ListIterator<Tag> itr = tags.listIterator();
-            while (itr.hasNext()) {
-                tagString += itr.next().getName();
-                if (itr.hasNext()) tagString += ",";
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                int user = in.readInt();
+                int section = in.readByte();
+                String guid = in.readUTF();
+                String name = in.readUTF();
+                if (user != userId) continue;
+                if (section == MetadataCache.TAGS) {
+                    tags.put(guid, name);
+                } else if (section == MetadataCache.NOTEBOOKS) {
+                    notebooks.put(guid, name);
+                }
             }
-            fos.write(tagString.getBytes());
-            fos.close();
+        } catch (EOFException e) {
+            // end of file, or a torn last record
         } catch (Exception e){
-            Log.e(LOG_TAG, "Tags Write error:" + e.getMessage());
+            Log.e(LOG_TAG, "Delta Read error:" + e.getMessage());
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+            }
         }
     }
 
-    public void writeNoteCache(List<Notebook> notebooks) {
-        Log.d(LOG_TAG, "Write note cache");
-        try {
-            String content = "";
-            File file = new File(mContext.getCacheDir(), CACHE_NOTES);
+    /**
+     * Deletes the delta file once its entries are in the metadata cache.
+     * Call from {@link #runAsWriter}.
+     */
+    public void clearDelta() {
+        File file = new File(mContext.getCacheDir(), CACHE_DELTA);
+        if (file.exists()) file.delete();
+    }
 
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            ListIterator<Notebook> itr = notebooks.listIterator();
-            while (itr.hasNext()) {
-                Notebook notebook = itr.next();
-                content += notebook.getGuid() + "," + notebook.getName() + "\n";
-            }
-            fos.write(content.getBytes());
-            fos.close();
-        } catch (Exception e){
-            Log.e(LOG_TAG, "Note Write error:" + e.getMessage());
+    private static void notifyChanged() {
+        final OnMetadataChangedListener[] listeners;
+        synchronized (sListeners) {
+            if (sListeners.isEmpty()) return;
+            listeners = sListeners.toArray(new OnMetadataChangedListener[sListeners.size()]);
+            if (sHandler == null) sHandler = new Handler(Looper.getMainLooper());
         }
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnMetadataChangedListener listener : listeners) {
+                    listener.onMetadataChanged();
+                }
+            }
+        });
     }
 
     public boolean writeAuthCache(String token, long expire_at) {
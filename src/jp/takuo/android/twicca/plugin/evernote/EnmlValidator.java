@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Checks note content against ENML 2 before it is sent.
+ *
+ * The content is read once without building a tree: it must be well
+ * formed XML with an en-note root, use only the elements ENML allows,
+ * each with the attributes the ENML DTD gives it, and only the entities
+ * it declares. A note failing here would only be rejected by createNote
+ * after a round trip.
+ */
+public class EnmlValidator {
+    private static final String ROOT = "en-note";
+    private static final String MEDIA = "en-media";
+    private static final String MEDIA_TYPE = "type";
+    private static final String MEDIA_HASH = "hash";
+
+    // the attributes each element allows, after the ENML 2 DTD
+    private static final HashMap<String, HashSet<String>> ELEMENTS = new HashMap<String, HashSet<String>>();
+    private static final String CORE = "style title";
+    private static final String I18N = "lang xml:lang dir";
+    private static final String ATTRS = CORE + " " + I18N;
+    private static final String CELL_ALIGN = "align char charoff valign";
+    private static final String IMAGE = "height width usemap align border hspace vspace longdesc alt";
+    static {
+        define(ATTRS, "abbr", "acronym", "address", "b", "big", "center", "cite", "code", "dd",
+                "dfn", "dt", "em", "i", "kbd", "s", "samp", "small", "span", "strike", "strong",
+                "sub", "sup", "tt", "u", "var", "xmp");
+        define(ATTRS + " align", "caption", "div", "p", "h1", "h2", "h3", "h4", "h5", "h6");
+        define(ATTRS + " cite", "blockquote", "q");
+        define(ATTRS + " cite datetime", "del", "ins");
+        define(ATTRS + " span width " + CELL_ALIGN, "col", "colgroup");
+        define(ATTRS + " " + CELL_ALIGN, "tbody", "thead", "tfoot");
+        define(ATTRS + " bgcolor " + CELL_ALIGN, "tr");
+        define(ATTRS + " abbr axis headers scope rowspan colspan nowrap bgcolor width height "
+                + CELL_ALIGN, "td", "th");
+        define(ATTRS + " summary width border frame rules cellspacing cellpadding align bgcolor", "table");
+        define(ATTRS + " charset type name href hreflang rel rev shape coords target", "a");
+        define(ATTRS + " shape coords href nohref alt target", "area");
+        define(ATTRS, "bdo");
+        define(CORE + " clear", "br");
+        define(ATTRS + " compact", "dl");
+        define(ATTRS + " size color face", "font");
+        define(ATTRS + " align noshade size width", "hr");
+        define(ATTRS + " src name ismap " + IMAGE, "img");
+        define(ATTRS + " type value", "li");
+        define(ATTRS + " name", "map");
+        define(ATTRS + " type compact start", "ol");
+        define(ATTRS + " type compact", "ul");
+        define(ATTRS + " width xml:space", "pre");
+        define(I18N, "title");
+        define(ATTRS + " bgcolor text xmlns", ROOT);
+        define(ATTRS + " " + MEDIA_TYPE + " " + MEDIA_HASH + " " + IMAGE, MEDIA);
+        define("hint cipher length", "en-crypt");
+        define("checked", "en-todo");
+    }
+
+    // the entities of XHTML 1.0, which the ENML DTD declares
+    private static final HashSet<String> ENTITIES = new HashSet<String>(Arrays.asList((
+        "quot amp lt gt nbsp iexcl cent pound curren yen brvbar sect uml copy ordf laquo not shy " +
+        "reg macr deg plusmn sup2 sup3 acute micro para middot cedil sup1 ordm raquo frac14 " +
+        "frac12 frac34 iquest Agrave Aacute Acirc Atilde Auml Aring AElig Ccedil Egrave Eacute " +
+        "Ecirc Euml Igrave Iacute Icirc Iuml ETH Ntilde Ograve Oacute Ocirc Otilde Ouml times " +
+        "Oslash Ugrave Uacute Ucirc Uuml Yacute THORN szlig agrave aacute acirc atilde auml aring " +
+        "aelig ccedil egrave eacute ecirc euml igrave iacute icirc iuml eth ntilde ograve oacute " +
+        "ocirc otilde ouml divide oslash ugrave uacute ucirc uuml yacute thorn yuml OElig oelig " +
+        "Scaron scaron Yuml fnof circ tilde Alpha Beta Gamma Delta Epsilon Zeta Eta Theta Iota " +
+        "Kappa Lambda Mu Nu Xi Omicron Pi Rho Sigma Tau Upsilon Phi Chi Psi Omega alpha beta " +
+        "gamma delta epsilon zeta eta theta iota kappa lambda mu nu xi omicron pi rho sigmaf " +
+        "sigma tau upsilon phi chi psi omega thetasym upsih piv ensp emsp thinsp zwnj zwj lrm rlm " +
+        "ndash mdash lsquo rsquo sbquo ldquo rdquo bdquo dagger Dagger bull hellip permil prime " +
+        "Prime lsaquo rsaquo oline frasl euro image weierp real trade alefsym larr uarr rarr darr " +
+        "harr crarr lArr uArr rArr dArr hArr forall part exist empty nabla isin notin ni prod sum " +
+        "minus lowast radic prop infin ang and or cap cup int there4 sim cong asymp ne equiv le " +
+        "ge sub sup nsub sube supe oplus otimes perp sdot lceil rceil lfloor rfloor lang rang loz " +
+        "spades clubs hearts diams apos").split(" ")));
+
+    private final String mContent;
+    private final int mLength;
+    private int mPos;
+    private final ArrayList<String> mOpen = new ArrayList<String>();
+
+    private EnmlValidator(String content) {
+        mContent = content;
+        mLength = content.length();
+    }
+
+    /**
+     * Returns null if the content is valid ENML, or what is wrong with it.
+     */
+    public static String check(String content) {
+        if (content == null || content.length() == 0) return "empty content";
+        return new EnmlValidator(content).run();
+    }
+
+    static boolean isXmlChar(char c) {
+        return (c >= 0x20 && c < Character.MIN_SURROGATE)
+            || (c > Character.MAX_SURROGATE && c <= 0xfffd)
+            || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private String run() {
+        boolean rootSeen = false;
+        while (mPos < mLength) {
+            char c = mContent.charAt(mPos);
+            String error = null;
+            if (c == '<') {
+                if (mContent.startsWith("<?", mPos)) {
+                    error = skipPast("?>");
+                } else if (mContent.startsWith("<!--", mPos)) {
+                    error = skipPast("-->");
+                } else if (mContent.startsWith("<!DOCTYPE", mPos)) {
+                    if (rootSeen) return "DOCTYPE inside the note";
+                    error = skipPast(">");
+                } else if (mContent.startsWith("</", mPos)) {
+                    error = endTag();
+                } else {
+                    if (mOpen.isEmpty()) {
+                        if (rootSeen) return "content after " + ROOT;
+                        rootSeen = true;
+                    }
+                    error = startTag();
+                }
+            } else if (c == '&') {
+                error = reference();
+            } else {
+                error = character(c);
+                if (error == null && mOpen.isEmpty() && !isSpace(c)) {
+                    error = "text outside " + ROOT;
+                }
+            }
+            if (error != null) return error + " at " + mPos;
+        }
+        if (!rootSeen) return "no " + ROOT;
+        if (!mOpen.isEmpty()) return "unclosed <" + mOpen.get(mOpen.size() - 1) + ">";
+        return null;
+    }
+
+    private String skipPast(String end) {
+        int i = mContent.indexOf(end, mPos);
+        if (i < 0) return "unterminated markup";
+        mPos = i + end.length();
+        return null;
+    }
+
+    private String startTag() {
+        mPos++;
+        String name = name();
+        if (name == null) return "bad element name";
+        if (mOpen.isEmpty() && !name.equals(ROOT)) return "root is not " + ROOT;
+        HashSet<String> allowed = ELEMENTS.get(name);
+        if (allowed == null) return "element <" + name + "> not allowed";
+        HashSet<String> seen = null;
+        while (true) {
+            boolean space = skipSpaces();
+            if (mPos >= mLength) return "unterminated <" + name + ">";
+            char c = mContent.charAt(mPos);
+            if (c == '>') {
+                mPos++;
+                mOpen.add(name);
+                return required(name, seen);
+            }
+            if (c == '/') {
+                if (!mContent.startsWith("/>", mPos)) return "bad <" + name + ">";
+                mPos += 2;
+                return required(name, seen);
+            }
+            if (!space) return "bad <" + name + ">";
+            String attr = name();
+            if (attr == null) return "bad attribute in <" + name + ">";
+            if (!allowed.contains(attr)) return "attribute " + attr + " not allowed in <" + name + ">";
+            if (seen == null) seen = new HashSet<String>();
+            if (!seen.add(attr)) return "duplicate attribute " + attr;
+            skipSpaces();
+            if (mPos >= mLength || mContent.charAt(mPos) != '=') return "bad attribute " + attr;
+            mPos++;
+            skipSpaces();
+            String error = value();
+            if (error != null) return error;
+        }
+    }
+
+    private static String required(String name, HashSet<String> attrs) {
+        if (name.equals(MEDIA)) {
+            if (attrs == null || !attrs.contains(MEDIA_TYPE)) return "<" + MEDIA + "> without " + MEDIA_TYPE;
+            if (!attrs.contains(MEDIA_HASH)) return "<" + MEDIA + "> without " + MEDIA_HASH;
+        } else if (name.equals("bdo")) {
+            if (attrs == null || !attrs.contains("dir")) return "<bdo> without dir";
+        }
+        return null;
+    }
+
+    private String endTag() {
+        mPos += 2;
+        String name = name();
+        skipSpaces();
+        if (name == null || mPos >= mLength || mContent.charAt(mPos) != '>') return "bad end tag";
+        mPos++;
+        if (mOpen.isEmpty() || !mOpen.get(mOpen.size() - 1).equals(name)) {
+            return "mismatched </" + name + ">";
+        }
+        mOpen.remove(mOpen.size() - 1);
+        return null;
+    }
+
+    private String value() {
+        if (mPos >= mLength) return "missing attribute value";
+        char quote = mContent.charAt(mPos);
+        if (quote != '"' && quote != '\'') return "unquoted attribute value";
+        mPos++;
+        while (mPos < mLength) {
+            char c = mContent.charAt(mPos);
+            String error = null;
+            if (c == quote) {
+                mPos++;
+                return null;
+            } else if (c == '<') {
+                return "'<' in attribute value";
+            } else if (c == '&') {
+                error = reference();
+            } else {
+                error = character(c);
+            }
+            if (error != null) return error;
+        }
+        return "unterminated attribute value";
+    }
+
+    // "&name;" of a declared entity, "&#nn;" or "&#xhh;" of an XML char.
+    private String reference() {
+        int i = mPos + 1;
+        if (i < mLength && mContent.charAt(i) == '#') {
+            i++;
+            boolean hex = i < mLength && mContent.charAt(i) == 'x';
+            if (hex) i++;
+            int start = i;
+            int code = 0;
+            int digit;
+            while (i < mLength && (digit = Character.digit(mContent.charAt(i), hex ? 16 : 10)) >= 0) {
+                // stops growing past the last code point
+                if (code <= Character.MAX_CODE_POINT) code = code * (hex ? 16 : 10) + digit;
+                i++;
+            }
+            if (i == start) return "bad character reference";
+            if (code > Character.MAX_CODE_POINT || (code <= 0xffff && !isXmlChar((char) code))) {
+                return "invalid character reference";
+            }
+        } else {
+            int start = i;
+            while (i < mLength && isNameChar(mContent.charAt(i))) i++;
+            if (i == start) return "unescaped '&'";
+            if (i < mLength && mContent.charAt(i) == ';'
+                    && !ENTITIES.contains(mContent.substring(start, i))) {
+                return "undeclared entity &" + mContent.substring(start, i) + ";";
+            }
+        }
+        if (i >= mLength || mContent.charAt(i) != ';') return "unescaped '&'";
+        mPos = i + 1;
+        return null;
+    }
+
+    private static void define(String attributes, String... elements) {
+        HashSet<String> set = new HashSet<String>(Arrays.asList(attributes.split(" ")));
+        for (String element : elements) {
+            ELEMENTS.put(element, set);
+        }
+    }
+
+    private String character(char c) {
+        if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE
+                && mPos + 1 < mLength) {
+            char low = mContent.charAt(mPos + 1);
+            if (low >= Character.MIN_LOW_SURROGATE && low <= Character.MAX_LOW_SURROGATE) {
+                mPos += 2;
+                return null;
+            }
+        }
+        if (!isXmlChar(c)) return "invalid character";
+        mPos++;
+        return null;
+    }
+
+    private String name() {
+        int start = mPos;
+        while (mPos < mLength && isNameChar(mContent.charAt(mPos))) mPos++;
+        return mPos > start ? mContent.substring(start, mPos) : null;
+    }
+
+    private boolean skipSpaces() {
+        int start = mPos;
+        while (mPos < mLength && isSpace(mContent.charAt(mPos))) mPos++;
+        return mPos > start;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '_' || c == '.' || c == ':';
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Builds the ENML content of a note into one buffer.
+ *
+ * The tweet text is written once from left to right; its entities
+ * become links and line breaks &lt;br /&gt; as they are met, without
+ * intermediate copies of the text.
+ */
+public class EnmlWriter {
+    private static final String NOTE_PREFIX =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">" +
+        "<en-note>";
+    private static final String NOTE_SUFFIX = "</en-note>";
+    // room for the markup around the tweet
+    private static final int MARKUP_SIZE = 1024;
+
+    private static final String SEARCH_URL = "https://twitter.com/search?q=";
+    private static final String HASHTAG_QUERY = "%23";
+    private static final String CASHTAG_QUERY = "%24";
+    private static final String USER_URL = "http://twitter.com/";
+
+    private final StringBuilder mBuffer;
+
+    /**
+     * @param textLength length of the tweet text, to size the buffer
+     */
+    public EnmlWriter(int textLength) {
+        // a link roughly triples the text it wraps
+        mBuffer = new StringBuilder(MARKUP_SIZE + textLength * 3);
+    }
+
+    public EnmlWriter beginNote() {
+        mBuffer.append(NOTE_PREFIX);
+        return this;
+    }
+
+    public EnmlWriter endNote() {
+        mBuffer.append(NOTE_SUFFIX);
+        return this;
+    }
+
+    /**
+     * Appends markup or text as it is.
+     */
+    public EnmlWriter append(String s) {
+        mBuffer.append(s);
+        return this;
+    }
+
+    /**
+     * Appends the tweet text with its entities linked.
+     */
+    public EnmlWriter appendTweet(TweetEntities entities) {
+        return appendTweet(entities, null);
+    }
+
+    /**
+     * Appends the tweet text with its entities linked, followed by the
+     * images attached for its URLs.
+     *
+     * @param media attached images by URL, or null
+     */
+    public EnmlWriter appendTweet(TweetEntities entities, Map<String, MediaFile> media) {
+        String text = entities.getText();
+        int pos = 0;
+        for (int i = 0; i < entities.size(); i++) {
+            int start = entities.getStart(i);
+            int end = entities.getEnd(i);
+            escape(text, pos, start, true);
+            switch (entities.getType(i)) {
+            case TweetEntities.URL:
+                mBuffer.append("<a target=\"_blank\" href=\"");
+                escape(text, start, end, false);
+                mBuffer.append("\">");
+                break;
+            case TweetEntities.MENTION:
+                mBuffer.append("<a target=\"_blank\" href=\"").append(USER_URL)
+                    .append(text, start + 1, end).append("\">");
+                break;
+            case TweetEntities.HASHTAG:
+                mBuffer.append("<a href=\"").append(SEARCH_URL).append(HASHTAG_QUERY)
+                    .append(text, start + 1, end).append("\" target=\"_blank\" title=\"#")
+                    .append(text, start + 1, end).append("\">");
+                break;
+            case TweetEntities.CASHTAG:
+                mBuffer.append("<a href=\"").append(SEARCH_URL).append(CASHTAG_QUERY)
+                    .append(text, start + 1, end).append("\" target=\"_blank\" title=\"")
+                    .append(text, start, end).append("\">");
+                break;
+            }
+            escape(text, start, end, false);
+            mBuffer.append("</a>");
+            pos = end;
+        }
+        escape(text, pos, text.length(), true);
+        if (media == null || media.isEmpty()) return this;
+        HashSet<String> appended = new HashSet<String>();
+        for (int i = 0; i < entities.size(); i++) {
+            if (entities.getType(i) != TweetEntities.URL) continue;
+            MediaFile file = media.get(entities.getValue(i));
+            if (file != null && appended.add(file.getHashHex())) {
+                mBuffer.append("<br />");
+                appendMedia(file);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the en-media element showing an attached image.
+     */
+    public EnmlWriter appendMedia(MediaFile media) {
+        mBuffer.append("<en-media type=\"");
+        appendAttribute(media.getMime());
+        mBuffer.append("\" hash=\"").append(media.getHashHex()).append("\"/>");
+        return this;
+    }
+
+    /**
+     * Appends text, escaped, with line breaks as &lt;br /&gt;.
+     */
+    public EnmlWriter appendText(String s) {
+        if (s != null) escape(s, 0, s.length(), true);
+        return this;
+    }
+
+    /**
+     * Appends an attribute value, escaped, without the quotes.
+     */
+    public EnmlWriter appendAttribute(String s) {
+        if (s != null) escape(s, 0, s.length(), false);
+        return this;
+    }
+
+    // characters XML cannot hold at all, including unpaired surrogates,
+    // are dropped instead of failing the whole note.
+    private void escape(String s, int start, int end, boolean lineBreaks) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                mBuffer.append("&amp;");
+                break;
+            case '<':
+                mBuffer.append("&lt;");
+                break;
+            case '>':
+                mBuffer.append("&gt;");
+                break;
+            case '"':
+                mBuffer.append("&quot;");
+                break;
+            case '\n':
+                mBuffer.append(lineBreaks ? "<br />" : "&#10;");
+                break;
+            default:
+                if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE) {
+                    if (i + 1 < end && s.charAt(i + 1) >= Character.MIN_LOW_SURROGATE
+                            && s.charAt(i + 1) <= Character.MAX_LOW_SURROGATE) {
+                        mBuffer.append(c).append(s.charAt(++i));
+                    }
+                } else if (EnmlValidator.isXmlChar(c)) {
+                    mBuffer.append(c);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chars written so far.
+     */
+    public int length() {
+        return mBuffer.length();
+    }
+
+    /**
+     * Returns a copy of what was written from start, e.g. to keep a
+     * fragment for the next note.
+     */
+    public String substring(int start) {
+        return mBuffer.substring(start);
+    }
+
+    @Override
+    public String toString() {
+        return mBuffer.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+/**
+ * Hashtag rules used by {@link TweetEntities}.
+ *
+ * A hashtag is "#" (or a full width one) followed by a run of letters,
+ * digits and "_" holding at least one letter. It must not follow a
+ * letter, digit, "&" or "/", and must not be directly followed by "#"
+ * or "://". Character classes are looked up in tables instead of a
+ * regular expression, so the text is read once whatever its length.
+ */
+public class HashtagScanner {
+    private static final byte OTHER = 0;
+    private static final byte DIGIT = 1;
+    private static final byte ALPHA = 2;
+
+    // code point ranges of hashtag letters, sorted, inclusive
+    private static final char[] ALPHA_RANGES = {
+        'A', 'Z', 'a', 'z',
+        '\u00c0', '\u00d6', '\u00d8', '\u00f6', '\u00f8', '\u00ff', '\u015f', '\u015f', // Latin accents
+        '\u0400', '\u04ff', '\u0500', '\u0527', // Cyrillic
+        '\u1100', '\u11ff',                  // Hangul Jamo
+        '\u2de0', '\u2dff',                  // Cyrillic Extended A
+        '\u3005', '\u3005', '\u303b', '\u303b', // Kanji/Han iteration marks
+        '\u3040', '\u309f',                  // Hiragana
+        '\u30a0', '\u30ff',                  // Katakana
+        '\u3130', '\u3185',                  // Hangul Compatibility Jamo
+        '\u4e00', '\u9fff',                  // CJK Unified Ideographs
+        '\ua640', '\ua69f',                  // Cyrillic Extended B
+        '\ua960', '\ua97f',                  // Hangul Jamo Extended A
+        '\uac00', '\ud7ff',                  // Hangul Syllables, Jamo Extended B
+        '\uff21', '\uff3a', '\uff41', '\uff5a', // full width Alphabet
+        '\uff66', '\uff9f',                  // half width Katakana
+        '\uffa1', '\uffdc',                  // half width Hangul
+    };
+    private static final char[] DIGIT_RANGES = {
+        '0', '9', '_', '_',
+        '\uff10', '\uff19',                  // full width digits
+    };
+
+    // classes of Latin-1, looked up directly
+    private static final byte[] LATIN1 = new byte[0x100];
+    static {
+        for (char c = 0; c < LATIN1.length; c++) {
+            LATIN1[c] = lookup(c);
+        }
+    }
+
+    private HashtagScanner() {
+    }
+
+    /**
+     * Returns the end of the hashtag whose "#" is at i, or -1.
+     */
+    static int scan(CharSequence text, int i) {
+        int length = text.length();
+        char c = text.charAt(i);
+        if (c != '#' && c != '\uff03') return -1;
+        if (i > 0) {
+            char prev = text.charAt(i - 1);
+            if (prev == '&' || prev == '/' || classOf(prev) != OTHER) return -1;
+        }
+        boolean alpha = false;
+        int j = i + 1;
+        for (; j < length; j++) {
+            byte cls = classOf(text.charAt(j));
+            if (cls == OTHER) break;
+            if (cls == ALPHA) alpha = true;
+        }
+        if (!alpha) return -1;
+        if (j < length) {
+            c = text.charAt(j);
+            if (c == '#' || c == '\uff03') return -1;
+            if (c == ':' && j + 2 < length
+                    && text.charAt(j + 1) == '/' && text.charAt(j + 2) == '/') return -1;
+        }
+        return j;
+    }
+
+    static byte classOf(char c) {
+        if (c < LATIN1.length) return LATIN1[c];
+        return lookup(c);
+    }
+
+    private static byte lookup(char c) {
+        if (inRanges(ALPHA_RANGES, c)) return ALPHA;
+        if (inRanges(DIGIT_RANGES, c)) return DIGIT;
+        return OTHER;
+    }
+
+    // binary search over pairs of inclusive bounds
+    private static boolean inRanges(char[] ranges, char c) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (c < ranges[mid * 2]) {
+                high = mid - 1;
+            } else if (c > ranges[mid * 2 + 1]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Size-bounded disk cache of fetched images, keyed by URL.
+ *
+ * An entry keeps the MD5 and size computed when it was downloaded and the
+ * validators (ETag, Last-Modified) the server sent, so a cached image is
+ * revalidated with a conditional GET and never hashed again. Least
+ * recently used entries are evicted once the cache grows over its limit.
+ * Files handed out are pinned until released, so eviction never removes
+ * a file a note is still being sent from.
+ */
+public class MediaCache {
+    private static final String LOG_TAG = "MediaCache";
+    private static final String CACHE_DIR = "media";
+    private static final String INDEX_FILE = "index";
+    private static final int VERSION = 1;
+    private static final long MAX_SIZE = 16 * 1024 * 1024;
+    // used without asking the server for this long after a check
+    private static final long FRESH_TIME = 24 * 60 * 60 * 1000L;
+
+    private static MediaCache sInstance;
+
+    private final File mDir;
+    private final File mIndex;
+    // in access order, the eldest first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mSize;
+
+    static class Entry {
+        final String mUrl;
+        final String mFileName;
+        final String mMime;
+        final byte[] mHash;
+        final long mSize;
+        final String mETag;
+        final String mLastModified;
+        long mCheckedAt;
+        int mPins;
+        boolean mRemoved;
+
+        Entry(String url, String fileName, String mime, byte[] hash, long size,
+                String etag, String lastModified, long checkedAt) {
+            mUrl = url;
+            mFileName = fileName;
+            mMime = mime;
+            mHash = hash;
+            mSize = size;
+            mETag = etag;
+            mLastModified = lastModified;
+            mCheckedAt = checkedAt;
+        }
+    }
+
+    public static synchronized MediaCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private MediaCache(File dir) {
+        mDir = dir;
+        mIndex = new File(dir, INDEX_FILE);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + mDir);
+        }
+        load();
+    }
+
+    /**
+     * Returns the entry for url, pinned, or null. It has to be released
+     * with {@link #release(MediaFile)} or {@link #unpin(Entry)}. An entry
+     * whose file is gone, e.g. when the system cleared the cache
+     * directory, is dropped.
+     */
+    synchronized Entry get(String url) {
+        Entry entry = mEntries.get(url);
+        if (entry == null) return null;
+        if (!new File(mDir, entry.mFileName).isFile()) {
+            Log.d(LOG_TAG, "File of " + url + " is gone");
+            mEntries.remove(url);
+            remove(entry);
+            save();
+            return null;
+        }
+        entry.mPins++;
+        return entry;
+    }
+
+    /**
+     * Returns whether the entry may be used without asking the server.
+     */
+    synchronized boolean isFresh(Entry entry) {
+        long age = System.currentTimeMillis() - entry.mCheckedAt;
+        return age >= 0 && age < FRESH_TIME;
+    }
+
+    synchronized void unpin(Entry entry) {
+        if (--entry.mPins > 0) return;
+        if (entry.mRemoved) {
+            new File(mDir, entry.mFileName).delete();
+        } else if (mSize > MAX_SIZE) {
+            // it was skipped by an eviction while pinned
+            evict();
+            save();
+        }
+    }
+
+    /**
+     * Marks a pinned entry as just confirmed by the server.
+     */
+    synchronized MediaFile revalidated(Entry entry) {
+        entry.mCheckedAt = System.currentTimeMillis();
+        save();
+        return toMediaFile(entry);
+    }
+
+    synchronized MediaFile toMediaFile(Entry entry) {
+        return new MediaFile(entry.mUrl, new File(mDir, entry.mFileName),
+                entry.mMime, entry.mHash, entry);
+    }
+
+    /**
+     * Returns a new file to download into, in the cache directory so that
+     * it can be taken over without copying. The directory is created
+     * again if the system cleared it.
+     */
+    File newFile() {
+        if (!mDir.isDirectory()) mDir.mkdirs();
+        return new File(mDir, UUID.randomUUID().toString() + ".tmp");
+    }
+
+    /**
+     * Takes over a downloaded file, replacing any older entry for its URL.
+     * The returned file is pinned.
+     */
+    synchronized MediaFile put(String url, File file, String mime, byte[] hash,
+            String etag, String lastModified) throws IOException {
+        String name = file.getName();
+        name = name.substring(0, name.length() - ".tmp".length());
+        if (!file.renameTo(new File(mDir, name))) {
+            throw new IOException("Failed to rename " + file);
+        }
+        Entry old = mEntries.remove(url);
+        if (old != null) remove(old);
+        Entry entry = new Entry(url, name, mime, hash, new File(mDir, name).length(),
+                etag, lastModified, System.currentTimeMillis());
+        entry.mPins = 1;
+        mEntries.put(url, entry);
+        mSize += entry.mSize;
+        evict();
+        save();
+        return toMediaFile(entry);
+    }
+
+    /**
+     * Releases a file returned by this cache.
+     */
+    synchronized void release(MediaFile media) {
+        unpin(media.getEntry());
+    }
+
+    private void remove(Entry entry) {
+        mSize -= entry.mSize;
+        entry.mRemoved = true;
+        if (entry.mPins == 0) {
+            new File(mDir, entry.mFileName).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> itr = mEntries.values().iterator();
+        while (mSize > MAX_SIZE && itr.hasNext()) {
+            Entry entry = itr.next();
+            if (entry.mPins > 0) continue;
+            itr.remove();
+            remove(entry);
+            Log.d(LOG_TAG, "Evicted " + entry.mUrl);
+        }
+    }
+
+    private void load() {
+        HashSet<String> names = new HashSet<String>();
+        names.add(INDEX_FILE);
+        if (mIndex.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndex)));
+                if (in.readInt() != VERSION) throw new IOException("Unknown version");
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String url = in.readUTF();
+                    String name = in.readUTF();
+                    String mime = in.readUTF();
+                    byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    long size = in.readLong();
+                    String etag = readOptional(in);
+                    String lastModified = readOptional(in);
+                    long checkedAt = in.readLong();
+                    if (new File(mDir, name).length() != size) continue;
+                    mEntries.put(url, new Entry(url, name, mime, hash, size, etag, lastModified, checkedAt));
+                    mSize += size;
+                    names.add(name);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to load the index", e);
+                mEntries.clear();
+                mSize = 0;
+                names.clear();
+                names.add(INDEX_FILE);
+            } finally {
+                try {
+                    if (in != null) in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        // files of lost entries and interrupted downloads
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        for (int i = 0; i < files.length; i++) {
+            if (!names.contains(files[i].getName())) files[i].delete();
+        }
+    }
+
+    private void save() {
+        File temp = new File(mDir, INDEX_FILE + ".new");
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(mEntries.size());
+                Iterator<Entry> itr = mEntries.values().iterator();
+                while (itr.hasNext()) {
+                    Entry entry = itr.next();
+                    out.writeUTF(entry.mUrl);
+                    out.writeUTF(entry.mFileName);
+                    out.writeUTF(entry.mMime);
+                    out.writeByte(entry.mHash.length);
+                    out.write(entry.mHash);
+                    out.writeLong(entry.mSize);
+                    writeOptional(out, entry.mETag);
+                    writeOptional(out, entry.mLastModified);
+                    out.writeLong(entry.mCheckedAt);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mIndex)) throw new IOException("Failed to replace " + mIndex);
+        } catch (IOException e) {
+            // the entries are found again as long as the process lives
+            Log.e(LOG_TAG, "Failed to save the index", e);
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptional(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+}
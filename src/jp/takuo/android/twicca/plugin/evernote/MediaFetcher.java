@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.evernote.edam.util.EDAMUtil;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Downloads images through the {@link MediaCache}.
+ *
+ * The MD5 Evernote needs for a Resource is computed from the bytes as
+ * they are written, so the file is read once, when the note is sent. A
+ * cached image is used as it is while fresh and revalidated with a
+ * conditional GET after that; it is neither downloaded nor hashed again
+ * unless the server has a new one. A link to a photo page, such as
+ * pic.twitter.com, gets the image the page shows.
+ */
+public class MediaFetcher implements MediaPipeline.Fetcher {
+    private static final String LOG_TAG = "MediaFetcher";
+    private static final int TIMEOUT = 20 * 1000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // larger than any photo a tweet links to
+    private static final int MAX_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_HOPS = 5;
+    // the meta tags are in the head of a photo page
+    private static final int PAGE_SIZE = 64 * 1024;
+    // sites whose pages each show one photo
+    private static final String[] PHOTO_HOSTS = {
+        "pic.twitter.com", "twitpic.com", "instagr.am", "instagram.com", "yfrog.com"
+    };
+    private static final Pattern META_TAG = Pattern.compile("<meta\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern META_NAME = Pattern.compile(
+            "(?:property|name)\\s*=\\s*[\"'](?:og:image|twitter:image(?::src)?)[\"']",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern META_CONTENT = Pattern.compile(
+            "content\\s*=\\s*([\"'])([^\"']+)\\1", Pattern.CASE_INSENSITIVE);
+
+    private final MediaCache mCache;
+
+    public MediaFetcher(Context context) {
+        mCache = MediaCache.getInstance(context);
+    }
+
+    /**
+     * Returns the image at the requested URL, to be released with
+     * {@link #release(MediaFile)} once the note is sent. Redirects are
+     * followed, and a photo page is read for the image it shows.
+     *
+     * @throws IOException if the download failed, was cancelled or it is
+     *         not an image
+     */
+    @Override
+    public MediaFile fetch(MediaPipeline.Request request) throws IOException {
+        String url = request.getUrl();
+        MediaCache.Entry cached = mCache.get(url);
+        boolean reused = false;
+        try {
+            if (cached != null && mCache.isFresh(cached)) {
+                reused = true;
+                return mCache.toMediaFile(cached);
+            }
+            String target = url;
+            boolean inPage = false;
+            for (int hops = 0; ; hops++) {
+                if (hops > MAX_HOPS) throw new IOException("Too many redirects for " + url);
+                final HttpURLConnection conn = (HttpURLConnection) new URL(target).openConnection();
+                conn.setConnectTimeout(TIMEOUT);
+                conn.setReadTimeout(TIMEOUT);
+                // across protocols too, which HttpURLConnection does not
+                conn.setInstanceFollowRedirects(false);
+                if (cached != null) {
+                    if (cached.mETag != null) conn.setRequestProperty("If-None-Match", cached.mETag);
+                    if (cached.mLastModified != null) {
+                        conn.setRequestProperty("If-Modified-Since", cached.mLastModified);
+                    }
+                }
+                request.setOnCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.disconnect();
+                    }
+                });
+                try {
+                    int code = conn.getResponseCode();
+                    String location = conn.getHeaderField("Location");
+                    if (code / 100 == 3 && code != HttpURLConnection.HTTP_NOT_MODIFIED && location != null) {
+                        target = new URL(new URL(target), location).toString();
+                        continue;
+                    }
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                        Log.d(LOG_TAG, "Not modified " + url);
+                        reused = true;
+                        return mCache.revalidated(cached);
+                    }
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("HTTP " + code + " for " + target);
+                    }
+                    String mime = getMime(conn.getContentType());
+                    if (mime == null && !inPage && isPhotoPage(target)) {
+                        String image = findImage(conn.getInputStream());
+                        if (image != null) {
+                            target = new URL(new URL(target), image).toString();
+                            inPage = true;
+                            continue;
+                        }
+                    }
+                    if (mime == null) {
+                        throw new IOException("Not an image: " + conn.getContentType());
+                    }
+                    File file = mCache.newFile();
+                    byte[] hash;
+                    try {
+                        hash = copy(conn.getInputStream(), file, request);
+                    } catch (IOException e) {
+                        file.delete();
+                        throw e;
+                    }
+                    Log.d(LOG_TAG, "Fetched " + url + " (" + file.length() + " bytes)");
+                    return mCache.put(url, file, mime, hash,
+                            conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+                } finally {
+                    request.setOnCancel(null);
+                    conn.disconnect();
+                }
+            }
+        } finally {
+            if (cached != null && !reused) mCache.unpin(cached);
+        }
+    }
+
+    /**
+     * Releases a file returned by {@link #fetch(MediaPipeline.Request)}.
+     */
+    @Override
+    public void release(MediaFile media) {
+        if (media == null) return;
+        if (media.getEntry() != null) {
+            mCache.release(media);
+        } else {
+            media.getFile().delete();
+        }
+    }
+
+    // writes the stream to the file and returns its MD5
+    private static byte[] copy(InputStream in, File file, MediaPipeline.Request request)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(EDAMUtil.EDAM_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int total = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (request.isCancelled()) throw new IOException("Cancelled");
+                total += n;
+                if (total > MAX_SIZE) throw new IOException("Too large");
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns whether the URL is a page showing a single photo, whose
+     * image is named in its og:image or twitter:image meta tag.
+     */
+    static boolean isPhotoPage(String url) {
+        String host;
+        String path;
+        try {
+            URL u = new URL(url);
+            host = u.getHost().toLowerCase();
+            path = u.getPath();
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        if (host.startsWith("www.")) host = host.substring(4);
+        if (host.equals("twitter.com") || host.equals("mobile.twitter.com")) {
+            return path.indexOf("/photo/") >= 0;
+        }
+        for (int i = 0; i < PHOTO_HOSTS.length; i++) {
+            if (host.equals(PHOTO_HOSTS[i])) return true;
+        }
+        return false;
+    }
+
+    // reads the head of a page for the image meta tag
+    private static String findImage(InputStream in) throws IOException {
+        byte[] buffer = new byte[PAGE_SIZE];
+        int length = 0;
+        try {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        Matcher tags = META_TAG.matcher(new String(buffer, 0, length, "UTF-8"));
+        while (tags.find()) {
+            String tag = tags.group();
+            Matcher name = META_NAME.matcher(tag);
+            Matcher content = META_CONTENT.matcher(tag);
+            if (name.find() && content.find()) {
+                return content.group(2).replace("&amp;", "&");
+            }
+        }
+        return null;
+    }
+
+    // the types ENML can show inline
+    static String getMime(String contentType) {
+        if (contentType == null) return null;
+        String mime = contentType;
+        int i = mime.indexOf(';');
+        if (i >= 0) mime = mime.substring(0, i);
+        mime = mime.trim().toLowerCase();
+        if (mime.equals("image/jpg") || mime.equals("image/pjpeg")) return "image/jpeg";
+        if (mime.equals("image/jpeg") || mime.equals("image/png") || mime.equals("image/gif")) {
+            return mime;
+        }
+        return null;
+    }
+}
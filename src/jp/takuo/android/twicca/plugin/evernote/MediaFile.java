@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.File;
+
+import com.evernote.client.conn.mobile.FileData;
+import com.evernote.edam.type.Resource;
+import com.evernote.edam.type.ResourceAttributes;
+import com.evernote.edam.util.EDAMUtil;
+
+/**
+ * A downloaded image, in the spool directory or the {@link MediaCache},
+ * with the MD5 computed while it was written.
+ */
+public class MediaFile {
+    private final String mUrl;
+    private final File mFile;
+    private final String mMime;
+    private final byte[] mHash;
+    // set if the file belongs to the MediaCache
+    private final MediaCache.Entry mEntry;
+
+    public MediaFile(String url, File file, String mime, byte[] hash) {
+        this(url, file, mime, hash, null);
+    }
+
+    MediaFile(String url, File file, String mime, byte[] hash, MediaCache.Entry entry) {
+        mUrl = url;
+        mFile = file;
+        mMime = mime;
+        mHash = hash;
+        mEntry = entry;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    /**
+     * Returns the same file attached under another source URL.
+     */
+    MediaFile withUrl(String url) {
+        return new MediaFile(url, mFile, mMime, mHash, mEntry);
+    }
+
+    MediaCache.Entry getEntry() {
+        return mEntry;
+    }
+
+    public String getHashHex() {
+        return EDAMUtil.bytesToHex(mHash);
+    }
+
+    /**
+     * Returns a Resource which streams the file when the note is sent,
+     * the bytes are never loaded into memory.
+     */
+    public Resource toResource() {
+        Resource resource = new Resource();
+        resource.setData(new FileData(mHash, mFile));
+        resource.setMime(mMime);
+        ResourceAttributes attrs = new ResourceAttributes();
+        attrs.setSourceURL(mUrl);
+        attrs.setFileName(mUrl.substring(mUrl.lastIndexOf('/') + 1));
+        resource.setAttributes(attrs);
+        return resource;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Fetches the images of a clip concurrently.
+ *
+ * All clips share a small pool of threads, and a single clip runs at most
+ * a few fetches at a time; its images are queued at once and taken in
+ * turn, so submitting never waits. Each image is fetched on its own, so a
+ * slow or failing one only loses itself: a fetch running longer than
+ * half the clip's time, and whatever is left at the deadline, is
+ * cancelled and stays a link in the note.
+ */
+public class MediaPipeline {
+    private static final String LOG_TAG = "MediaPipeline";
+    // fetches running at once, over all clips
+    private static final int MAX_THREADS = 4;
+    // fetches running at once for one clip
+    private static final int MAX_PER_CLIP = 3;
+    private static final long TIMEOUT = 30 * 1000;
+    // how often running fetches are checked for their own timeout
+    private static final long CHECK_INTERVAL = 1000;
+
+    private static Executor sExecutor;
+
+    /**
+     * Gets the images, {@link MediaFetcher} unless a stub is given.
+     */
+    public interface Fetcher {
+        MediaFile fetch(Request request) throws IOException;
+
+        void release(MediaFile media);
+    }
+
+    /**
+     * One image of a clip. A fetcher registers how to abort its work,
+     * e.g. disconnecting, which is run when the request is cancelled.
+     */
+    public static class Request {
+        private final String mUrl;
+        private long mStartedAt;
+        private boolean mCancelled;
+        private Runnable mOnCancel;
+
+        Request(String url) {
+            mUrl = url;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Sets what aborts the running fetch, null when there is nothing
+         * to abort. It is run at once if the request is already cancelled.
+         */
+        public void setOnCancel(Runnable onCancel) {
+            synchronized (this) {
+                mOnCancel = onCancel;
+                if (!mCancelled || onCancel == null) return;
+            }
+            onCancel.run();
+        }
+
+        synchronized boolean start() {
+            if (mCancelled) return false;
+            mStartedAt = System.currentTimeMillis();
+            return true;
+        }
+
+        synchronized long getStartedAt() {
+            return mStartedAt;
+        }
+
+        void cancel() {
+            Runnable onCancel;
+            synchronized (this) {
+                if (mCancelled) return;
+                mCancelled = true;
+                onCancel = mOnCancel;
+            }
+            if (onCancel != null) onCancel.run();
+        }
+    }
+
+    private final Fetcher mFetcher;
+    private final Executor mExecutor;
+    private final long mTimeout;
+
+    public MediaPipeline(Fetcher fetcher) {
+        this(fetcher, getExecutor(), TIMEOUT);
+    }
+
+    public MediaPipeline(Fetcher fetcher, Executor executor, long timeout) {
+        mFetcher = fetcher;
+        mExecutor = executor;
+        mTimeout = timeout;
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(MAX_THREADS);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Fetches the URLs and returns their files in the same order, null for
+     * those which failed or did not arrive in time. The files have to be
+     * given back with {@link #release(MediaFile[])}.
+     */
+    public MediaFile[] fetchAll(List<String> urls) {
+        final int count = urls.size();
+        final Request[] requests = new Request[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = new Request(urls.get(i));
+        }
+        final MediaFile[] results = new MediaFile[count];
+        final boolean[] closed = new boolean[1];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    MediaFile media = fetch(requests[i]);
+                    synchronized (results) {
+                        if (!closed[0]) {
+                            results[i] = media;
+                            media = null;
+                        }
+                    }
+                    // too late, nobody takes it anymore
+                    if (media != null) mFetcher.release(media);
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < Math.min(count, MAX_PER_CLIP); i++) {
+            mExecutor.execute(worker);
+        }
+
+        long deadline = System.currentTimeMillis() + mTimeout;
+        try {
+            long now;
+            while ((now = System.currentTimeMillis()) < deadline) {
+                if (done.await(Math.min(deadline - now, CHECK_INTERVAL), TimeUnit.MILLISECONDS)) break;
+                // a slow image gives way to the others
+                now = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    long startedAt = requests[i].getStartedAt();
+                    if (startedAt > 0 && now - startedAt > mTimeout / 2) requests[i].cancel();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MediaFile[] fetched;
+        synchronized (results) {
+            closed[0] = true;
+            fetched = results.clone();
+        }
+        // frees the pool threads of what is still running or queued
+        for (int i = 0; i < count; i++) {
+            requests[i].cancel();
+        }
+        return fetched;
+    }
+
+    private MediaFile fetch(Request request) {
+        if (!request.start()) return null;
+        try {
+            return mFetcher.fetch(request);
+        } catch (Exception e) {
+            if (request.isCancelled()) {
+                Log.d(LOG_TAG, "Cancelled " + request.getUrl());
+            } else {
+                Log.w(LOG_TAG, "Failed to fetch " + request.getUrl(), e);
+            }
+            return null;
+        }
+    }
+
+    public void release(MediaFile[] media) {
+        for (int i = 0; i < media.length; i++) {
+            if (media[i] != null) mFetcher.release(media[i]);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.evernote.edam.util.EDAMUtil;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Scales fetched images down before they are attached.
+ *
+ * One image is decoded at a time, subsampled to at most twice the target
+ * size and within a share of the heap, then scaled to fit and encoded
+ * again into the {@link MediaCache}. The MD5 is computed from the
+ * encoded bytes as they are written. The result is cached by the MD5 of
+ * the original and the settings, so a retried clip is not decoded again.
+ * GIFs, which may be animated, images which already fit and images
+ * which would not get smaller are attached as they are.
+ */
+public class MediaShrinker implements MediaPipeline.Fetcher {
+    private static final String LOG_TAG = "MediaShrinker";
+    private static final String KEY_PREFIX = "shrunk:";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // part of the heap the decoded and the scaled bitmap may take
+    private static final int HEAP_SHARE = 4;
+    public static final int DEFAULT_SIZE = 1024;
+    public static final int DEFAULT_QUALITY = 75;
+
+    // bitmaps are decoded one at a time, over all pipeline threads
+    private static final Object sDecodeLock = new Object();
+
+    private final MediaPipeline.Fetcher mFetcher;
+    private final MediaCache mCache;
+    private final long mBudget;
+    private final int mSize;
+    private final int mQuality;
+
+    /**
+     * @param size the long side to fit the images in, 0 to keep them
+     * @param quality the JPEG quality to encode them with
+     */
+    public MediaShrinker(Context context, MediaPipeline.Fetcher fetcher, int size, int quality) {
+        mFetcher = fetcher;
+        mSize = size;
+        mQuality = quality;
+        mCache = MediaCache.getInstance(context);
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBudget = (long) am.getMemoryClass() * 1024 * 1024 / HEAP_SHARE;
+    }
+
+    @Override
+    public MediaFile fetch(MediaPipeline.Request request) throws IOException {
+        String url = request.getUrl();
+        MediaFile media = mFetcher.fetch(request);
+        if (mSize <= 0) return media;
+        String key = KEY_PREFIX + media.getHashHex() + ":" + mSize + ":" + mQuality;
+        MediaCache.Entry cached = mCache.get(key);
+        if (cached != null) {
+            mFetcher.release(media);
+            return mCache.toMediaFile(cached).withUrl(url);
+        }
+        MediaFile shrunk = null;
+        try {
+            synchronized (sDecodeLock) {
+                // the clip may have given up while this one waited
+                if (!request.isCancelled()) shrunk = shrink(media, key, mSize, mQuality);
+            }
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Failed to shrink " + url, e);
+        } catch (OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Out of memory shrinking " + url);
+        }
+        if (shrunk == null) return media;
+        mFetcher.release(media);
+        return shrunk.withUrl(url);
+    }
+
+    @Override
+    public void release(MediaFile media) {
+        mFetcher.release(media);
+    }
+
+    // returns the smaller copy, pinned in the cache, or null to keep the
+    // image as it is
+    private MediaFile shrink(MediaFile media, String key, int size, int quality) throws IOException {
+        Bitmap.CompressFormat format;
+        Bitmap.Config config;
+        int bytesPerPixel;
+        if ("image/jpeg".equals(media.getMime())) {
+            format = Bitmap.CompressFormat.JPEG;
+            config = Bitmap.Config.RGB_565;
+            bytesPerPixel = 2;
+        } else if ("image/png".equals(media.getMime())) {
+            // keeps the alpha channel
+            format = Bitmap.CompressFormat.PNG;
+            config = Bitmap.Config.ARGB_8888;
+            bytesPerPixel = 4;
+        } else {
+            return null;
+        }
+        String path = media.getFile().getPath();
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        int width = opts.outWidth;
+        int height = opts.outHeight;
+        if (width <= 0 || height <= 0) return null;
+        int longSide = Math.max(width, height);
+        if (longSide <= size) return null;
+
+        float scale = (float) size / longSide;
+        long scaledBytes = (long) Math.round(width * scale) * Math.round(height * scale) * bytesPerPixel;
+        int sample = 1;
+        while (longSide / sample > 2 * size) sample *= 2;
+        // the decoded bitmap is alive while the scaled one is made
+        while (longSide / (sample * 2) >= size
+                && decodedBytes(width, height, sample, bytesPerPixel) + scaledBytes > mBudget) {
+            sample *= 2;
+        }
+        if (decodedBytes(width, height, sample, bytesPerPixel) + scaledBytes > mBudget) {
+            // decoded below the target size, it is not scaled again
+            sample *= 2;
+            if (decodedBytes(width, height, sample, bytesPerPixel) > mBudget) return null;
+        }
+        opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = config;
+        Bitmap bitmap = BitmapFactory.decodeFile(path, opts);
+        if (bitmap == null) return null;
+        try {
+            scale = Math.min(1f, (float) size / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+            if (scale < 1f) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+            File file = mCache.newFile();
+            byte[] hash;
+            try {
+                hash = write(bitmap, format, quality, file);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            if (file.length() >= media.getFile().length()) {
+                file.delete();
+                return null;
+            }
+            Log.d(LOG_TAG, "Shrunk " + media.getUrl() + " " + width + "x" + height + " to "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight() + " ("
+                    + media.getFile().length() + " to " + file.length() + " bytes)");
+            return mCache.put(key, file, media.getMime(), hash, null, null);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static long decodedBytes(int width, int height, int sample, int bytesPerPixel) {
+        return (long) (width / sample) * (height / sample) * bytesPerPixel;
+    }
+
+    // encodes the bitmap into the file and returns the MD5 of the bytes written
+    private static byte[] write(Bitmap bitmap, Bitmap.CompressFormat format, int quality, File file)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(EDAMUtil.EDAM_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        DigestOutputStream out = new DigestOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE), digest);
+        try {
+            if (!bitmap.compress(format, quality, out)) throw new IOException("Failed to encode");
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Parses a size or quality setting, defValue if it is not a number.
+     */
+    public static int parse(String value, int defValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+}
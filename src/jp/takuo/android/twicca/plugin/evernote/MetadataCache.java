@@ -0,0 +1,502 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import android.util.Log;
+
+/**
+ * Read-only view of the binary metadata cache.
+ *
+ * The file is memory-mapped and never parsed as a whole; names are
+ * decoded only when asked for. An instance never changes, a rewritten
+ * file is opened as a new one. Layout, big-endian:
+ * <pre>
+ * header   magic, version, updateCount, lastSyncTime,
+ *          count of notebooks, tags and searches, string table size,
+ *          user ID of the account, generation, reserved
+ * records  per entry: GUID as 16 bytes, name offset, name length
+ * index    per section: record numbers sorted by name, ignoring case
+ * strings  UTF-8 names
+ * trailer  CRC32 of everything before, except the update count
+ * </pre>
+ */
+public class MetadataCache {
+    private static final String LOG_TAG = "MetadataCache";
+
+    public static final int NOTEBOOKS = 0;
+    public static final int TAGS      = 1;
+    public static final int SEARCHES  = 2;
+    private static final int SECTIONS = 3;
+
+    private static final int MAGIC   = 0x454e4d43; // "ENMC"
+    private static final int VERSION = 3;
+    private static final int UPDATE_COUNT_OFFSET = 8;
+    private static final int GENERATION_OFFSET = 40;
+    private static final int CRC_SIZE = 4;
+    private static final int HEADER_SIZE = 48;
+    private static final int RECORD_SIZE = 24;
+
+    private static final MetadataCache EMPTY = new MetadataCache();
+
+    private final ByteBuffer mBuffer;
+    private final int[] mCount = new int[SECTIONS];
+    private final int[] mFirst = new int[SECTIONS];
+    private int mIndexOffset;
+    private int mStringsOffset;
+    private final String[][] mSortedNames = new String[SECTIONS][];
+    private NotebookIndex mNotebookIndex;
+
+    private MetadataCache() {
+        mBuffer = null;
+    }
+
+    private MetadataCache(ByteBuffer buffer, boolean verify) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown cache format");
+        }
+        long total = 0;
+        for (int i = 0; i < SECTIONS; i++) {
+            mCount[i] = buffer.getInt(20 + i * 4);
+            mFirst[i] = (int) total;
+            total += mCount[i];
+        }
+        long size = HEADER_SIZE + total * (RECORD_SIZE + 4) + buffer.getInt(32) + CRC_SIZE;
+        if (total < 0 || size != buffer.capacity()) {
+            throw new IOException("Truncated cache");
+        }
+        int end = buffer.capacity() - CRC_SIZE;
+        if (verify && buffer.getInt(end) != checksum(buffer, end)) {
+            throw new IOException("Checksum mismatch");
+        }
+        mIndexOffset = HEADER_SIZE + (int) total * RECORD_SIZE;
+        mStringsOffset = mIndexOffset + (int) total * 4;
+    }
+
+    // CRC32 of the file up to the trailer, without the update count.
+    private static int checksum(ByteBuffer buffer, int end) {
+        CRC32 crc = new CRC32();
+        ByteBuffer in = buffer.duplicate();
+        in.clear();
+        byte[] chunk = new byte[8192];
+        int pos = 0;
+        while (pos < end) {
+            int len = Math.min(chunk.length, end - pos);
+            in.get(chunk, 0, len);
+            if (pos == 0) {
+                crc.update(chunk, 0, UPDATE_COUNT_OFFSET);
+                crc.update(chunk, UPDATE_COUNT_OFFSET + 4, len - UPDATE_COUNT_OFFSET - 4);
+            } else {
+                crc.update(chunk, 0, len);
+            }
+            pos += len;
+        }
+        return (int) crc.getValue();
+    }
+
+    public static MetadataCache empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Folds the case of a char like String.CASE_INSENSITIVE_ORDER does,
+     * independent of the locale, so folded strings compare in its order.
+     */
+    public static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    public static String fold(CharSequence s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(s.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Maps the cache file, or returns an empty cache if it is missing
+     * or not readable.
+     */
+    public static MetadataCache open(File file) {
+        return open(file, true);
+    }
+
+    /**
+     * Maps the cache file, checking the CRC only if verify is set. The
+     * writer skips it for the file it has just written and synced.
+     */
+    static MetadataCache open(File file, boolean verify) {
+        if (!file.canRead()) return EMPTY;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return new MetadataCache(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), verify);
+            } finally {
+                // the mapping stays valid after close
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Metadata Read error: " + e.getMessage());
+        }
+        return EMPTY;
+    }
+
+    public int getUpdateCount() {
+        return mBuffer != null ? mBuffer.getInt(UPDATE_COUNT_OFFSET) : 0;
+    }
+
+    public long getLastSyncTime() {
+        return mBuffer != null ? mBuffer.getLong(12) : 0;
+    }
+
+    /**
+     * Returns the user ID of the account the cache belongs to, 0 if unknown.
+     */
+    public int getUserId() {
+        return mBuffer != null ? mBuffer.getInt(36) : 0;
+    }
+
+    /**
+     * Returns the number of rewrites the file went through, 0 if empty.
+     */
+    public int getGeneration() {
+        return mBuffer != null ? mBuffer.getInt(GENERATION_OFFSET) : 0;
+    }
+
+    /**
+     * Reads only the generation of the cache file, to tell whether a
+     * mapped cache is still current. Returns 0 if there is none.
+     */
+    public static int readGeneration(File file) {
+        if (!file.canRead()) return 0;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < HEADER_SIZE) return 0;
+                raf.seek(GENERATION_OFFSET);
+                return raf.readInt();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Metadata Read error: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    public int getCount(int section) {
+        return mCount[section];
+    }
+
+    public String getGuid(int section, int i) {
+        int record = HEADER_SIZE + (mFirst[section] + i) * RECORD_SIZE;
+        return new UUID(mBuffer.getLong(record), mBuffer.getLong(record + 8)).toString();
+    }
+
+    public String getName(int section, int i) {
+        int record = HEADER_SIZE + (mFirst[section] + i) * RECORD_SIZE;
+        int offset = mStringsOffset + mBuffer.getInt(record + 16);
+        byte[] bytes = new byte[mBuffer.getInt(record + 20)];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = mBuffer.get(offset + j);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the entry number at the given position in name order.
+     */
+    public int getSorted(int section, int rank) {
+        return mBuffer.getInt(mIndexOffset + (mFirst[section] + rank) * 4);
+    }
+
+    /**
+     * Returns all names of the section in name order. The array is
+     * decoded once and shared, it must not be modified.
+     */
+    public synchronized String[] getSortedNames(int section) {
+        String[] names = mSortedNames[section];
+        if (names == null) {
+            names = new String[mCount[section]];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = getName(section, getSorted(section, i));
+            }
+            mSortedNames[section] = names;
+        }
+        return names;
+    }
+
+    /**
+     * Returns the name index of the notebooks, built on first use.
+     */
+    public synchronized NotebookIndex getNotebookIndex() {
+        if (mNotebookIndex == null) {
+            mNotebookIndex = new NotebookIndex(this, NOTEBOOKS);
+        }
+        return mNotebookIndex;
+    }
+
+    /**
+     * Returns the entry number with the given name, ignoring case, or -1.
+     */
+    public int find(int section, String name) {
+        int low = 0;
+        int high = mCount[section] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int i = getSorted(section, mid);
+            int cmp = compareName(section, i, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // compares the name of an entry like String.CASE_INSENSITIVE_ORDER,
+    // decoding its UTF-8 in place instead of into a String.
+    private int compareName(int section, int i, String name) {
+        int record = HEADER_SIZE + (mFirst[section] + i) * RECORD_SIZE;
+        int pos = mStringsOffset + mBuffer.getInt(record + 16);
+        int end = pos + mBuffer.getInt(record + 20);
+        int length = name.length();
+        int j = 0;
+        char low = 0; // the second half of a surrogate pair
+        while ((pos < end || low != 0) && j < length) {
+            char c;
+            if (low != 0) {
+                c = low;
+                low = 0;
+            } else {
+                int b = mBuffer.get(pos++) & 0xff;
+                if (b < 0x80) {
+                    c = (char) b;
+                } else if (b < 0xe0) {
+                    c = (char) ((b & 0x1f) << 6 | mBuffer.get(pos++) & 0x3f);
+                } else if (b < 0xf0) {
+                    c = (char) ((b & 0x0f) << 12 | (mBuffer.get(pos++) & 0x3f) << 6
+                            | mBuffer.get(pos++) & 0x3f);
+                } else {
+                    int cp = ((b & 0x07) << 18 | (mBuffer.get(pos++) & 0x3f) << 12
+                            | (mBuffer.get(pos++) & 0x3f) << 6 | mBuffer.get(pos++) & 0x3f) - 0x10000;
+                    c = (char) (Character.MIN_HIGH_SURROGATE + (cp >> 10));
+                    low = (char) (Character.MIN_LOW_SURROGATE + (cp & 0x3ff));
+                }
+            }
+            char d = name.charAt(j++);
+            if (c != d) {
+                c = fold(c);
+                d = fold(d);
+                if (c != d) return c - d;
+            }
+        }
+        if (pos < end || low != 0) return 1;
+        return j < length ? -1 : 0;
+    }
+
+    /**
+     * Writes a copy of this cache with another update count, as the
+     * given generation. The entries are copied as they are.
+     */
+    void writeCopy(OutputStream os, int generation, int updateCount) throws IOException {
+        byte[] bytes = new byte[mBuffer.capacity()];
+        ByteBuffer in = mBuffer.duplicate();
+        in.clear();
+        in.get(bytes);
+        ByteBuffer copy = ByteBuffer.wrap(bytes);
+        copy.putInt(UPDATE_COUNT_OFFSET, updateCount);
+        copy.putInt(GENERATION_OFFSET, generation);
+        int end = bytes.length - CRC_SIZE;
+        copy.putInt(end, checksum(copy, end));
+        os.write(bytes);
+    }
+
+    /**
+     * Writes a cache of the given guid to name maps. Names are streamed
+     * as they are encoded, the only buffer is the sort order of the index.
+     */
+    static void write(OutputStream os, int generation, int userId, int updateCount, long lastSyncTime,
+            Map<String, String> notebooks, Map<String, String> tags,
+            Map<String, String> searches) throws IOException {
+        List<Map<String, String>> sections = new ArrayList<Map<String, String>>(SECTIONS);
+        sections.add(notebooks);
+        sections.add(tags);
+        sections.add(searches);
+
+        CRC32 crc = new CRC32();
+        DataOutputStream raw = new DataOutputStream(os);
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(os, crc));
+
+        // first pass: sizes only
+        int[] counts = new int[SECTIONS];
+        int stringsSize = 0;
+        for (int s = 0; s < SECTIONS; s++) {
+            Iterator<Map.Entry<String, String>> itr = sections.get(s).entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, String> entry = itr.next();
+                if (!isValidGuid(entry.getKey())) {
+                    Log.w(LOG_TAG, "Skip unexpected GUID: " + entry.getKey());
+                    continue;
+                }
+                counts[s]++;
+                stringsSize += utf8Length(entry.getValue());
+            }
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        raw.writeInt(updateCount);
+        out.writeLong(lastSyncTime);
+        for (int s = 0; s < SECTIONS; s++) {
+            out.writeInt(counts[s]);
+        }
+        out.writeInt(stringsSize);
+        out.writeInt(userId);
+        out.writeInt(generation);
+        out.writeInt(0); // reserved
+
+        int offset = 0;
+        for (int s = 0; s < SECTIONS; s++) {
+            Iterator<Map.Entry<String, String>> itr = sections.get(s).entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, String> entry = itr.next();
+                if (!isValidGuid(entry.getKey())) continue;
+                UUID uuid = UUID.fromString(entry.getKey());
+                int length = utf8Length(entry.getValue());
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                out.writeInt(offset);
+                out.writeInt(length);
+                offset += length;
+            }
+        }
+        for (int s = 0; s < SECTIONS; s++) {
+            final String[] names = new String[counts[s]];
+            int i = 0;
+            Iterator<Map.Entry<String, String>> itr = sections.get(s).entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, String> entry = itr.next();
+                if (isValidGuid(entry.getKey())) names[i++] = entry.getValue();
+            }
+            Integer[] order = new Integer[names.length];
+            for (i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]);
+                }
+            });
+            for (i = 0; i < order.length; i++) {
+                out.writeInt(order[i]);
+            }
+        }
+        for (int s = 0; s < SECTIONS; s++) {
+            Iterator<Map.Entry<String, String>> itr = sections.get(s).entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<String, String> entry = itr.next();
+                if (isValidGuid(entry.getKey())) writeUtf8(out, entry.getValue());
+            }
+        }
+        raw.writeInt((int) crc.getValue());
+        raw.flush();
+    }
+
+    // GUIDs which are not UUIDs can not be stored and are left out.
+    private static boolean isValidGuid(String guid) {
+        try {
+            UUID.fromString(guid);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Unpaired surrogates are written as '?' like String.getBytes does.
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUtf8(DataOutputStream out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                out.write('?');
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.notestore.SyncChunk;
+import com.evernote.edam.notestore.SyncChunkFilter;
+import com.evernote.edam.notestore.SyncState;
+import com.evernote.edam.type.Notebook;
+import com.evernote.edam.type.SavedSearch;
+import com.evernote.edam.type.Tag;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Local mirror of the account's notebooks, tags and saved searches.
+ *
+ * The mirror remembers the USN it is current at and pulls only the
+ * changes after it with getFilteredSyncChunk, so the cost of a refresh
+ * depends on what changed rather than on the size of the account.
+ * The mirror is kept in the metadata cache file of {@link ECacheManager},
+ * together with the user ID of its account; a mirror of another account
+ * is thrown away and synced in full. Tags and notebooks we create are
+ * appended to a small delta file and kept in memory for lookups, and
+ * merged into the cache file on the next sync.
+ */
+public class MetadataMirror {
+    private static final String LOG_TAG = "MetadataMirror";
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static MetadataMirror sInstance;
+
+    private final ECacheManager mCacheManager;
+    private int mUserId = 0;
+    private int mUpdateCount = 0;
+    private long mLastSyncTime = 0;
+    private final LinkedHashMap<String, String> mNotebooks = new LinkedHashMap<String, String>();
+    private final LinkedHashMap<String, String> mTags = new LinkedHashMap<String, String>();
+    private final LinkedHashMap<String, String> mSearches = new LinkedHashMap<String, String>();
+    // USNs of our own notes, not yet contiguous with mUpdateCount
+    private final TreeSet<Integer> mOwnWrites = new TreeSet<Integer>();
+    // what we created since the last sync, by folded name
+    private final ConcurrentHashMap<String, String> mCreatedNotebooks = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, String> mCreatedTags = new ConcurrentHashMap<String, String>();
+
+    public static synchronized MetadataMirror getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MetadataMirror(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MetadataMirror(Context context) {
+        mCacheManager = new ECacheManager(context);
+        readHeader();
+        mCacheManager.readDelta(mUserId, mNotebooks, mTags);
+        for (Map.Entry<String, String> entry : mNotebooks.entrySet()) {
+            mCreatedNotebooks.put(MetadataCache.fold(entry.getValue()), entry.getKey());
+        }
+        for (Map.Entry<String, String> entry : mTags.entrySet()) {
+            mCreatedTags.put(MetadataCache.fold(entry.getValue()), entry.getKey());
+        }
+        mNotebooks.clear();
+        mTags.clear();
+    }
+
+    public synchronized int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * Pulls the changes since the last sync and rewrites the caches.
+     * Returns false if the account was not changed. The server is asked
+     * outside the writer lane, which is only taken to apply the changes,
+     * so uploads recording their own writes never wait for the network.
+     *
+     * @param userId the user ID of the account authToken belongs to
+     * @param force whether to throw the mirror away and sync in full
+     */
+    public boolean sync(NoteStore.Client noteStore, String authToken,
+            final int userId, boolean force) throws Exception {
+        MetadataCache cache = mCacheManager.getMetadata();
+        final SyncState state = noteStore.getSyncState(authToken);
+        final boolean full;
+        if (force || userId != cache.getUserId()) {
+            Log.d(LOG_TAG, force ? "Full sync requested" : "Account changed, full sync");
+            full = true;
+        } else if (state.getFullSyncBefore() > cache.getLastSyncTime()) {
+            Log.d(LOG_TAG, "Full sync required");
+            full = true;
+        } else if (state.getUpdateCount() == cache.getUpdateCount()
+                && mCreatedNotebooks.isEmpty() && mCreatedTags.isEmpty()) {
+            Log.d(LOG_TAG, "Account not changed, skip sync");
+            return false;
+        } else {
+            full = false;
+        }
+
+        final int from = full ? 0 : cache.getUpdateCount();
+        final ArrayList<SyncChunk> chunks = new ArrayList<SyncChunk>();
+        SyncChunkFilter filter = new SyncChunkFilter();
+        filter.setIncludeNotebooks(true);
+        filter.setIncludeTags(true);
+        filter.setIncludeSearches(true);
+        filter.setIncludeExpunged(from > 0);
+        int usn = from;
+        while (usn < state.getUpdateCount()) {
+            SyncChunk chunk = noteStore.getFilteredSyncChunk(authToken, usn, MAX_ENTRIES, filter);
+            chunks.add(chunk);
+            // no matching entries left if chunkHighUSN is not set
+            usn = chunk.isSetChunkHighUSN() ? chunk.getChunkHighUSN() : chunk.getUpdateCount();
+        }
+        final int to = usn;
+        synchronized (this) {
+            return mCacheManager.runAsWriter(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return apply(userId, full, from, to, state.getCurrentTime(), chunks);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets the mirrored account, on logout. The cache file is deleted
+     * by {@link ECacheManager#clear(java.io.File)}.
+     */
+    public synchronized void reset() {
+        clear();
+        mCreatedNotebooks.clear();
+        mCreatedTags.clear();
+    }
+
+    /**
+     * Returns the GUID of a tag or notebook created since the last sync,
+     * which the cache does not have yet, or null.
+     */
+    public String findCreated(int section, String name) {
+        return (section == MetadataCache.TAGS ? mCreatedTags : mCreatedNotebooks)
+                .get(MetadataCache.fold(name));
+    }
+
+    // runs in the writer lane, another writer may have synced meanwhile.
+    private boolean apply(int userId, boolean full, int from, int to, long syncTime, List<SyncChunk> chunks) {
+        readHeader();
+        boolean created = !mCreatedNotebooks.isEmpty() || !mCreatedTags.isEmpty();
+        if (full && userId == mUserId && mUpdateCount > to) {
+            Log.d(LOG_TAG, "Synced further by another writer");
+            return false;
+        } else if (full) {
+            clear();
+        } else if (userId != mUserId || mUpdateCount < from) {
+            Log.d(LOG_TAG, "Mirror was reset meanwhile, drop the changes");
+            return false;
+        } else if (mUpdateCount >= to && !created) {
+            Log.d(LOG_TAG, "Synced by another writer");
+            return false;
+        } else {
+            // changes already in the file are applied again, in order
+            load();
+        }
+        // what we created comes before the changes of the server
+        mCacheManager.readDelta(userId, mNotebooks, mTags);
+        if (full || mUpdateCount < to) {
+            mUserId = userId;
+            for (SyncChunk chunk : chunks) {
+                apply(chunk);
+            }
+            Log.d(LOG_TAG, "Synced from " + from + " to " + to);
+            mOwnWrites.headSet(to + 1).clear();
+            mUpdateCount = advance(to);
+            mLastSyncTime = syncTime;
+        }
+        if (!save()) {
+            // the delta and the created entries stay for the next sync
+            return false;
+        }
+        mCacheManager.clearDelta();
+        mCreatedNotebooks.clear();
+        mCreatedTags.clear();
+        return true;
+    }
+
+    /**
+     * Records the USN of a note we created. Notes do not change tags,
+     * notebooks or searches, so if nothing else happened in between the
+     * mirror is still current at the new USN.
+     */
+    public synchronized void noteCreated(int usn) {
+        mOwnWrites.add(usn);
+        try {
+            mCacheManager.runAsWriter(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    readHeader();
+                    int updateCount = advance(mUpdateCount);
+                    if (updateCount != mUpdateCount) {
+                        mUpdateCount = updateCount;
+                        mCacheManager.writeUpdateCount(mUpdateCount);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Mirror Write error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a tag we created, so that later clips find its GUID without
+     * waiting for the next sync.
+     */
+    public void tagCreated(Tag tag) {
+        created(MetadataCache.TAGS, tag.getGuid(), tag.getName(), tag.getUpdateSequenceNum());
+    }
+
+    /**
+     * Adds a notebook we created, like {@link #tagCreated}.
+     */
+    public void notebookCreated(Notebook notebook) {
+        created(MetadataCache.NOTEBOOKS, notebook.getGuid(), notebook.getName(),
+                notebook.getUpdateSequenceNum());
+    }
+
+    private synchronized void created(final int section, final String guid, final String name, int usn) {
+        mOwnWrites.add(usn);
+        (section == MetadataCache.TAGS ? mCreatedTags : mCreatedNotebooks)
+                .put(MetadataCache.fold(name), guid);
+        try {
+            mCacheManager.runAsWriter(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    readHeader();
+                    mCacheManager.appendDelta(mUserId, section, guid, name);
+                    // the entry is in the delta until the next sync merges it
+                    int updateCount = advance(mUpdateCount);
+                    if (updateCount != mUpdateCount) {
+                        mUpdateCount = updateCount;
+                        mCacheManager.writeUpdateCount(mUpdateCount);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Mirror Write error: " + e.getMessage());
+        }
+    }
+
+    // moves past our own writes which directly follow updateCount
+    private int advance(int updateCount) {
+        while (mOwnWrites.remove(updateCount + 1)) {
+            updateCount++;
+        }
+        return updateCount;
+    }
+
+    private void readHeader() {
+        MetadataCache cache = mCacheManager.getMetadata();
+        mUserId = cache.getUserId();
+        mUpdateCount = cache.getUpdateCount();
+        mLastSyncTime = cache.getLastSyncTime();
+    }
+
+    private void apply(SyncChunk chunk) {
+        if (chunk.isSetNotebooks()) {
+            for (Notebook notebook : chunk.getNotebooks()) {
+                mNotebooks.put(notebook.getGuid(), notebook.getName());
+            }
+        }
+        if (chunk.isSetTags()) {
+            for (Tag tag : chunk.getTags()) {
+                mTags.put(tag.getGuid(), tag.getName());
+            }
+        }
+        if (chunk.isSetSearches()) {
+            for (SavedSearch search : chunk.getSearches()) {
+                mSearches.put(search.getGuid(), search.getName());
+            }
+        }
+        if (chunk.isSetExpungedNotebooks()) {
+            mNotebooks.keySet().removeAll(chunk.getExpungedNotebooks());
+        }
+        if (chunk.isSetExpungedTags()) {
+            mTags.keySet().removeAll(chunk.getExpungedTags());
+        }
+        if (chunk.isSetExpungedSearches()) {
+            mSearches.keySet().removeAll(chunk.getExpungedSearches());
+        }
+    }
+
+    private void clear() {
+        mUserId = 0;
+        mUpdateCount = 0;
+        mLastSyncTime = 0;
+        mNotebooks.clear();
+        mTags.clear();
+        mSearches.clear();
+        mOwnWrites.clear();
+    }
+
+    private void load() {
+        MetadataCache cache = mCacheManager.getMetadata();
+        mNotebooks.clear();
+        mTags.clear();
+        mSearches.clear();
+        readSection(cache, MetadataCache.NOTEBOOKS, mNotebooks);
+        readSection(cache, MetadataCache.TAGS, mTags);
+        readSection(cache, MetadataCache.SEARCHES, mSearches);
+    }
+
+    private boolean save() {
+        boolean saved = mCacheManager.writeMetadata(mUserId, mUpdateCount, mLastSyncTime,
+                mNotebooks, mTags, mSearches);
+        // the entries are kept in the cache file until the next write
+        mNotebooks.clear();
+        mTags.clear();
+        mSearches.clear();
+        return saved;
+    }
+
+    private static void readSection(MetadataCache cache, int section, Map<String, String> map) {
+        int count = cache.getCount(section);
+        for (int i = 0; i < count; i++) {
+            map.put(cache.getGuid(section, i), cache.getName(section, i));
+        }
+    }
+}
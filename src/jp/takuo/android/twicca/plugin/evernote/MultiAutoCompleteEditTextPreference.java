@@ -28,7 +28,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewParent;
-import android.widget.ArrayAdapter;
 import android.widget.MultiAutoCompleteTextView;
 
 public class MultiAutoCompleteEditTextPreference extends DialogPreference {
@@ -137,10 +136,11 @@ public class MultiAutoCompleteEditTextPreference extends DialogPreference {
         return mEditText;
     }
 
+    /**
+     * Sets the suggestions, sorted in String.CASE_INSENSITIVE_ORDER.
+     */
     public void setStringArray(String [] array) {
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(getContext(),
-                R.layout.list_item, array);
-        getEdit().setAdapter(adapter);
+        getEdit().setAdapter(new TagSuggestAdapter(getContext(), array));
     }
     
     @Override
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.text.format.Time;
+
+/**
+ * Layout of a tweet note.
+ *
+ * A layout is parsed once into literal and slot segments around the tweet
+ * body; rendering only copies literals and escaped slot values. The part
+ * before the body depends on the author alone and is kept rendered for
+ * the last few authors, so clipping the same account again only renders
+ * the tweet itself.
+ */
+public class NoteTemplate {
+    public static final String LAYOUT_CARD   = "card";
+    public static final String LAYOUT_SIMPLE = "simple";
+
+    // slots, indexes into the values passed to render()
+    public static final int PROFILE_IMAGE = 0;
+    public static final int AVATAR_HASH   = 1;
+    public static final int AVATAR_MIME   = 2;
+    public static final int USER_NAME     = 3;
+    public static final int SCREEN_NAME   = 4;
+    public static final int TWEET_ID      = 5;
+    public static final int CREATED_AT    = 6;
+    public static final int SOURCE        = 7;
+    public static final int SLOT_COUNT    = 8;
+    // the header may only use these
+    private static final int AUTHOR_SLOTS = SCREEN_NAME + 1;
+
+    private static final String[] SLOT_NAMES = {
+        "profile_image", "avatar_hash", "avatar_mime", "user_name", "screen_name",
+        "tweet_id", "created_at", "source"
+    };
+    // "{avatar}" is the attached image if there is one, else the linked one
+    private static final String AVATAR = "avatar";
+    private static final int KIND_LITERAL   = 0;
+    private static final int KIND_TEXT      = 1;
+    private static final int KIND_ATTRIBUTE = 2;
+    private static final int KIND_AVATAR    = 3;
+    private static final String BODY = "{body}";
+    private static final int MAX_HEADERS = 16;
+
+    private static final String CARD =
+        "<table style='border-radius: 10px; background-color: #eeeeee'>" +
+        "<tr><td valign='top' style='padding: 10px'>" +
+        "{avatar}" +
+        " </td>" +
+        "<td style='padding: 10px'>" +
+        "<b>{user_name}(<a href=\"http://twitter.com/{screen_name}\">@{screen_name}</a>)</b>" +
+        "<p>" + BODY + "</p>" +
+        "<a style='color: #888888' href=\"http://twitter.com/{screen_name}/status/{tweet_id}\">{created_at}</a>" +
+        " <span style='color: #888888'>from {source}</span>" +
+        "</td></tr>" +
+        "</table>";
+    private static final String SIMPLE =
+        "<div><b>{user_name}</b> (<a href=\"http://twitter.com/{screen_name}\">@{screen_name}</a>)</div>" +
+        "<div>" + BODY + "</div>" +
+        "<div style='color: #888888'>" +
+        "<a style='color: #888888' href=\"http://twitter.com/{screen_name}/status/{tweet_id}\">{created_at}</a>" +
+        " from {source}</div>";
+
+    private static final HashMap<String, NoteTemplate> sTemplates = new HashMap<String, NoteTemplate>();
+
+    private final Segment[] mHeader;
+    private final Segment[] mFooter;
+    private final int mHeaderSize;
+    private final int mFooterSize;
+    private final boolean mHasAvatar;
+    private final LinkedHashMap<String, String> mHeaders =
+        new LinkedHashMap<String, String>(MAX_HEADERS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_HEADERS;
+            }
+        };
+
+    private static class Segment {
+        final int mKind;
+        final String mLiteral;
+        final int mSlot;
+
+        Segment(int kind, String literal, int slot) {
+            mKind = kind;
+            mLiteral = literal;
+            mSlot = slot;
+        }
+    }
+
+    /**
+     * Returns the compiled layout, the card layout if it is unknown.
+     */
+    public static synchronized NoteTemplate get(String layout) {
+        if (!LAYOUT_SIMPLE.equals(layout)) layout = LAYOUT_CARD;
+        NoteTemplate template = sTemplates.get(layout);
+        if (template == null) {
+            template = new NoteTemplate(LAYOUT_SIMPLE.equals(layout) ? SIMPLE : CARD);
+            sTemplates.put(layout, template);
+        }
+        return template;
+    }
+
+    /**
+     * Drops the rendered headers.
+     */
+    public static synchronized void trimMemory() {
+        for (NoteTemplate template : sTemplates.values()) {
+            synchronized (template.mHeaders) {
+                template.mHeaders.clear();
+            }
+        }
+    }
+
+    private NoteTemplate(String layout) {
+        int body = layout.indexOf(BODY);
+        mHeader = compile(layout.substring(0, body));
+        mFooter = compile(layout.substring(body + BODY.length()));
+        int size = 0;
+        boolean avatar = false;
+        for (Segment segment : mHeader) {
+            if (segment.mKind == KIND_LITERAL) size += segment.mLiteral.length();
+            if (segment.mKind == KIND_AVATAR) avatar = true;
+            if (segment.mSlot >= AUTHOR_SLOTS) {
+                throw new IllegalArgumentException("header uses " + SLOT_NAMES[segment.mSlot]);
+            }
+        }
+        mHeaderSize = size;
+        size = 0;
+        for (Segment segment : mFooter) {
+            if (segment.mKind == KIND_LITERAL) size += segment.mLiteral.length();
+            if (segment.mKind == KIND_AVATAR) avatar = true;
+        }
+        mFooterSize = size;
+        mHasAvatar = avatar;
+    }
+
+    /**
+     * Returns whether the layout shows the profile image.
+     */
+    public boolean hasAvatar() {
+        return mHasAvatar;
+    }
+
+    /**
+     * Renders the note of a clip holding the raw tweet.
+     *
+     * @param avatar the attached profile image, or null to link it
+     * @param media the attached images by URL, or null
+     */
+    public String render(Clip clip, TweetEntities entities, MediaFile avatar,
+            Map<String, MediaFile> media) {
+        String[] values = new String[SLOT_COUNT];
+        values[PROFILE_IMAGE] = clip.get(Clip.PROFILE_IMAGE);
+        if (avatar != null) {
+            values[AVATAR_HASH] = avatar.getHashHex();
+            values[AVATAR_MIME] = avatar.getMime();
+        }
+        values[USER_NAME] = clip.get(Clip.USER_NAME);
+        values[SCREEN_NAME] = clip.get(Clip.SCREEN_NAME);
+        values[TWEET_ID] = clip.get(Clip.TWEET_ID);
+        values[CREATED_AT] = formatTime(clip.get(Clip.CREATED_AT));
+        values[SOURCE] = clip.get(Clip.SOURCE);
+        return render(values, entities, media);
+    }
+
+    /**
+     * Renders the note.
+     *
+     * @param values slot values indexed by the slot constants
+     */
+    public String render(String[] values, TweetEntities entities) {
+        return render(values, entities, null);
+    }
+
+    private String render(String[] values, TweetEntities entities, Map<String, MediaFile> media) {
+        String key = getHeaderKey(values);
+        String header;
+        synchronized (mHeaders) {
+            header = mHeaders.get(key);
+        }
+        EnmlWriter writer = new EnmlWriter(mHeaderSize + mFooterSize + entities.getText().length());
+        writer.beginNote();
+        if (header != null) {
+            writer.append(header);
+        } else {
+            // rendered in place, the cache keeps a copy
+            int start = writer.length();
+            write(writer, mHeader, values);
+            header = writer.substring(start);
+            synchronized (mHeaders) {
+                mHeaders.put(key, header);
+            }
+        }
+        writer.appendTweet(entities, media);
+        write(writer, mFooter, values);
+        return writer.endNote().toString();
+    }
+
+    private static String formatTime(String millis) {
+        try {
+            Time time = new Time();
+            time.set(Long.parseLong(millis));
+            return time.format("%m/%d %H:%M:%S");
+        } catch (NumberFormatException e) {
+            return "";
+        }
+    }
+
+    private static String getHeaderKey(String[] values) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < AUTHOR_SLOTS; i++) {
+            key.append(values[i]).append('\0');
+        }
+        return key.toString();
+    }
+
+    private static void write(EnmlWriter writer, Segment[] segments, String[] values) {
+        for (Segment segment : segments) {
+            switch (segment.mKind) {
+            case KIND_LITERAL:
+                writer.append(segment.mLiteral);
+                break;
+            case KIND_TEXT:
+                writer.appendText(values[segment.mSlot]);
+                break;
+            case KIND_ATTRIBUTE:
+                writer.appendAttribute(values[segment.mSlot]);
+                break;
+            case KIND_AVATAR:
+                if (values[AVATAR_HASH] != null) {
+                    writer.append("<en-media type=\"").appendAttribute(values[AVATAR_MIME])
+                        .append("\" hash=\"").appendAttribute(values[AVATAR_HASH]).append("\"/>");
+                } else {
+                    writer.append("<img src=\"").appendAttribute(values[PROFILE_IMAGE]).append("\"/>");
+                }
+                break;
+            }
+        }
+    }
+
+    // splits at "{slot}"; a slot inside a tag is escaped as an attribute.
+    private static Segment[] compile(String layout) {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        boolean inTag = false;
+        int literal = 0;
+        int i = 0;
+        while (i < layout.length()) {
+            char c = layout.charAt(i);
+            if (c == '<') {
+                inTag = true;
+            } else if (c == '>') {
+                inTag = false;
+            } else if (c == '{') {
+                int end = layout.indexOf('}', i);
+                String name = end < 0 ? null : layout.substring(i + 1, end);
+                int slot = slotOf(name);
+                if (slot >= 0 || (AVATAR.equals(name) && !inTag)) {
+                    if (i > literal) {
+                        segments.add(new Segment(KIND_LITERAL, layout.substring(literal, i), -1));
+                    }
+                    if (slot < 0) {
+                        segments.add(new Segment(KIND_AVATAR, null, PROFILE_IMAGE));
+                    } else {
+                        segments.add(new Segment(inTag ? KIND_ATTRIBUTE : KIND_TEXT, null, slot));
+                    }
+                    i = literal = end + 1;
+                    continue;
+                }
+            }
+            i++;
+        }
+        if (literal < layout.length()) {
+            segments.add(new Segment(KIND_LITERAL, layout.substring(literal), -1));
+        }
+        return segments.toArray(new Segment[segments.size()]);
+    }
+
+    private static int slotOf(String name) {
+        for (int i = 0; i < SLOT_NAMES.length; i++) {
+            if (SLOT_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+}
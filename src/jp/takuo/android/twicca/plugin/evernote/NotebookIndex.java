@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+/**
+ * Immutable hash index from notebook name to entry number, ignoring case.
+ *
+ * Names are folded with {@link MetadataCache#fold(char)}, which does not
+ * depend on the locale, and kept in one shared char array. The table
+ * uses open addressing with linear probing; a lookup folds the query as
+ * it goes and allocates nothing.
+ */
+public class NotebookIndex {
+    private final char[] mChars;
+    // offset of name i in mChars is mOffsets[i], its end mOffsets[i + 1]
+    private final int[] mOffsets;
+    // entry number + 1, 0 for a free slot
+    private final int[] mSlots;
+    private final int mMask;
+
+    NotebookIndex(MetadataCache cache, int section) {
+        int count = cache.getCount(section);
+        String[] names = new String[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            names[i] = cache.getName(section, i);
+            size += names[i].length();
+        }
+        mChars = new char[size];
+        mOffsets = new int[count + 1];
+        int capacity = 4;
+        while (capacity < count * 2) capacity <<= 1;
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            mOffsets[i] = offset;
+            String name = names[i];
+            for (int j = 0; j < name.length(); j++) {
+                mChars[offset++] = MetadataCache.fold(name.charAt(j));
+            }
+            mOffsets[i + 1] = offset;
+            // the first of equal names wins, as the server keeps them unique
+            if (lookup(name) < 0) {
+                int slot = hash(mChars, mOffsets[i], offset) & mMask;
+                while (mSlots[slot] != 0) slot = (slot + 1) & mMask;
+                mSlots[slot] = i + 1;
+            }
+        }
+    }
+
+    public int size() {
+        return mOffsets.length - 1;
+    }
+
+    /**
+     * Returns the entry number of the name, or -1.
+     */
+    public int lookup(CharSequence name) {
+        int h = 0;
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + MetadataCache.fold(name.charAt(i));
+        }
+        for (int slot = h & mMask; mSlots[slot] != 0; slot = (slot + 1) & mMask) {
+            int entry = mSlots[slot] - 1;
+            if (matches(entry, name)) return entry;
+        }
+        return -1;
+    }
+
+    private boolean matches(int entry, CharSequence name) {
+        int start = mOffsets[entry];
+        if (mOffsets[entry + 1] - start != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (mChars[start + i] != MetadataCache.fold(name.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int hash(char[] chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+}
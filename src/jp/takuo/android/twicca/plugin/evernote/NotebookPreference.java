@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.ListIterator;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.res.TypedArray;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -41,7 +42,7 @@ public class NotebookPreference extends DialogPreference {
     private Spinner mSpinner;
     private EditText mEditText;
 
-    private ArrayList<String> mNotebooks;
+    private ArrayList<NotebookRef> mNotebooks;
     private String mText;
 
     public NotebookPreference(Context context,
@@ -80,14 +81,37 @@ public class NotebookPreference extends DialogPreference {
         return mText != null ? mText : "";
     }
 
+    /**
+     * Returns the selected notebook, with the GUID kept next to the name.
+     */
+    public NotebookRef getNotebook() {
+        return new NotebookRef(getSharedPreferences().getString(getGuidKey(), null), getText());
+    }
+
+    public void setNotebook(NotebookRef notebook) {
+        setText(notebook.getName());
+        if (shouldPersist()) {
+            SharedPreferences.Editor editor = getSharedPreferences().edit();
+            if (notebook.getGuid() != null) {
+                editor.putString(getGuidKey(), notebook.getGuid());
+            } else {
+                editor.remove(getGuidKey());
+            }
+            editor.commit();
+        }
+    }
+
+    private String getGuidKey() {
+        return getKey() + "_guid";
+    }
+
     public int getSelection() {
         if (mNotebooks == null) return 0;
         int index = 0;
-        String text = getText();
-        ListIterator<String> itr = mNotebooks.listIterator();
+        NotebookRef selected = getNotebook();
+        ListIterator<NotebookRef> itr = mNotebooks.listIterator();
         while (itr.hasNext()) {
-            String string = itr.next();
-            if (text.equals(string)) break;
+            if (selected.matches(itr.next())) break;
             index++;
         }
         return index;
@@ -157,12 +181,12 @@ public class NotebookPreference extends DialogPreference {
 
         if (positiveResult) {
             int index = getSpinner().getSelectedItemPosition();
-            String value = (String) getSpinner().getSelectedItem();
+            NotebookRef value = (NotebookRef) getSpinner().getSelectedItem();
             if (index == getSpinner().getCount() - 1) {
-                value = getEdit().getText().toString();
+                value = new NotebookRef(null, getEdit().getText().toString());
             }
-            if (callChangeListener(value)) {
-                setText(value);
+            if (callChangeListener(value.getName())) {
+                setNotebook(value);
             }
         }
     }
@@ -192,24 +216,24 @@ public class NotebookPreference extends DialogPreference {
     }
 
     @SuppressWarnings("unchecked")
-    public void setNotebookList(ArrayList<String> array) {
-        mNotebooks = (ArrayList<String>) array.clone();
+    public void setNotebookList(ArrayList<NotebookRef> array) {
+        mNotebooks = (ArrayList<NotebookRef>) array.clone();
         String notebook = getText();
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(getContext(),
+        ArrayAdapter<NotebookRef> adapter = new ArrayAdapter<NotebookRef>(getContext(),
                 R.layout.dropdown_list_item, array);
         Spinner spinner = getSpinner();
         spinner.setAdapter(adapter);
         int i = 0;
         if (notebook.length() > 0) {
-            ListIterator<String> itr = array.listIterator();
+            NotebookRef selected = getNotebook();
+            ListIterator<NotebookRef> itr = array.listIterator();
             while (itr.hasNext()) {
-                String name = itr.next();
-                if (notebook.equalsIgnoreCase(name))
+                if (selected.matches(itr.next()))
                     break;
                 i++;
             }
         }
-        adapter.add(getContext().getString(R.string.new_or_default));
+        adapter.add(new NotebookRef(null, getContext().getString(R.string.new_or_default)));
         spinner.setAdapter(adapter);
         spinner.setSelection(i);
         if (i == mNotebooks.size()) {
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+/**
+ * A notebook as picked by the user: its GUID if known, and its name.
+ * The name is shown in lists and used to find or create the notebook
+ * when the GUID is missing or no longer valid.
+ */
+public class NotebookRef {
+    private final String mGuid;
+    private final String mName;
+
+    public NotebookRef(String guid, String name) {
+        mGuid = guid != null && guid.length() > 0 ? guid : null;
+        mName = name != null ? name : "";
+    }
+
+    /**
+     * Returns the GUID, or null if only the name is known.
+     */
+    public String getGuid() {
+        return mGuid;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns true if this refers to the same notebook as the other,
+     * by GUID if both have one, else by name.
+     */
+    public boolean matches(NotebookRef other) {
+        if (mGuid != null && other.mGuid != null) return mGuid.equals(other.mGuid);
+        return mName.equalsIgnoreCase(other.mName);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.concurrent.Callable;
+
+import com.evernote.edam.error.EDAMUserException;
+import com.evernote.edam.notestore.NoteStore;
+import com.evernote.edam.type.Notebook;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Maps notebook names to GUIDs, creating missing notebooks.
+ *
+ * Concurrent clips to the same new notebook share one creation. When
+ * the notebook exists after all, the mirror is synced instead of
+ * listing every notebook. Results are written through to the cache.
+ */
+public class NotebookResolver {
+    private static final String LOG_TAG = "NotebookResolver";
+
+    private final ECacheManager mCacheManager;
+    private final MetadataMirror mMirror;
+    private final SingleFlight<String, String> mFlight = new SingleFlight<String, String>();
+
+    public NotebookResolver(Context context) {
+        mCacheManager = new ECacheManager(context);
+        mMirror = MetadataMirror.getInstance(context);
+    }
+
+    /**
+     * Returns the GUID of the notebook from the cache, or null. A notebook
+     * created since the last sync is found too.
+     */
+    public String find(String name) {
+        String guid = mMirror.findCreated(MetadataCache.NOTEBOOKS, name);
+        if (guid != null) return guid;
+        MetadataCache cache = mCacheManager.getMetadata();
+        int i = cache.getNotebookIndex().lookup(name);
+        return i >= 0 ? cache.getGuid(MetadataCache.NOTEBOOKS, i) : null;
+    }
+
+    /**
+     * Returns the GUID of the notebook, creating it if it is not known.
+     * Returns null if it can neither be found nor created.
+     *
+     * @param userId the user ID of the account authToken belongs to
+     * @param staleGuid a GUID the server did not find, or null
+     */
+    public String resolve(final NoteStore.Client noteStore, final String authToken, final int userId,
+            final String name, final String staleGuid) throws Exception {
+        String guid = find(name);
+        if (guid != null && !guid.equals(staleGuid)) return guid;
+
+        return mFlight.run(MetadataCache.fold(name), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // resolved by another clip since we looked
+                String guid = find(name);
+                if (guid != null && !guid.equals(staleGuid)) return guid;
+                if (staleGuid != null) {
+                    // the cache is behind the server
+                    mMirror.sync(noteStore, authToken, userId, false);
+                    guid = find(name);
+                    // the sync may not have seen the deletion yet
+                    if (guid != null && !guid.equals(staleGuid)) return guid;
+                }
+
+                Log.d(LOG_TAG, "Create new notebook: '" + name + "'");
+                Notebook notebook = new Notebook();
+                notebook.setName(name);
+                try {
+                    notebook = noteStore.createNotebook(authToken, notebook);
+                    mMirror.notebookCreated(notebook);
+                    return notebook.getGuid();
+                } catch (EDAMUserException e) {
+                    // maybe already exists.
+                    Log.d(LOG_TAG, "Sync notebooks...");
+                }
+                mMirror.sync(noteStore, authToken, userId, false);
+                guid = find(name);
+                return guid != null && !guid.equals(staleGuid) ? guid : null;
+            }
+        });
+    }
+}
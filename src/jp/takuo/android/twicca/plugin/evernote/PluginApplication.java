@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import android.app.Application;
+
+/**
+ * Releases the process-wide caches under memory pressure.
+ */
+public class PluginApplication extends Application {
+    // ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, API level 14
+    private static final int TRIM_MEMORY_BACKGROUND = 40;
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ECacheManager.trimMemory();
+        NoteTemplate.trimMemory();
+    }
+
+    // only called on API level 14 and later
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            ECacheManager.trimMemory();
+            NoteTemplate.trimMemory();
+        }
+    }
+}
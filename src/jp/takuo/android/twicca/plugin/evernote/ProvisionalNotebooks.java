@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Notebooks which were clipped to before they existed on the server.
+ *
+ * A new notebook name gets a local provisional ID when the clip is
+ * journaled, and its clips carry that ID instead of a GUID. The first
+ * clip which manages to create or find the notebook binds the ID to the
+ * real GUID; the clips queued behind it then upload without any lookup.
+ */
+public class ProvisionalNotebooks {
+    private static final String LOG_TAG = "ProvisionalNotebooks";
+    private static final String PREF_NAME = "provisional_notebooks";
+    private static final String PREFIX = "local:";
+    private static final String NAME_KEY = "name:";
+    private static final String GUID_KEY = "guid:";
+
+    private static ProvisionalNotebooks sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized ProvisionalNotebooks getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProvisionalNotebooks(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ProvisionalNotebooks(Context context) {
+        mPrefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static boolean isProvisional(String id) {
+        return id != null && id.startsWith(PREFIX);
+    }
+
+    /**
+     * Returns the provisional ID for the name, the same one for all clips
+     * until it is bound.
+     */
+    public synchronized String register(String name) {
+        String folded = MetadataCache.fold(name);
+        Iterator<? extends Map.Entry<String, ?>> itr = mPrefs.getAll().entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, ?> entry = itr.next();
+            if (!entry.getKey().startsWith(NAME_KEY)) continue;
+            String id = entry.getKey().substring(NAME_KEY.length());
+            if (folded.equals(MetadataCache.fold((String) entry.getValue()))
+                    && !mPrefs.contains(GUID_KEY + id)) {
+                return id;
+            }
+        }
+        String id = PREFIX + UUID.randomUUID().toString();
+        Log.d(LOG_TAG, "Register '" + name + "' as " + id);
+        mPrefs.edit().putString(NAME_KEY + id, name).commit();
+        return id;
+    }
+
+    /**
+     * Returns the GUID the ID was bound to, or null.
+     */
+    public synchronized String getGuid(String id) {
+        return mPrefs.getString(GUID_KEY + id, null);
+    }
+
+    public synchronized void bind(String id, String guid) {
+        Log.d(LOG_TAG, "Bind " + id + " to " + guid);
+        mPrefs.edit().putString(GUID_KEY + id, guid).commit();
+    }
+
+    /**
+     * Forgets the IDs no clip refers to anymore.
+     */
+    public synchronized void retain(Set<String> ids) {
+        SharedPreferences.Editor editor = null;
+        Iterator<String> itr = mPrefs.getAll().keySet().iterator();
+        while (itr.hasNext()) {
+            String key = itr.next();
+            String id = key.substring(key.indexOf(':') + 1);
+            if (ids.contains(id)) continue;
+            if (editor == null) editor = mPrefs.edit();
+            editor.remove(key);
+        }
+        if (editor != null) editor.commit();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.evernote.edam.error.EDAMNotFoundException;
+import com.evernote.edam.error.EDAMSystemException;
+import com.evernote.edam.error.EDAMUserException;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Decides whether and when a failed clip is uploaded again.
+ *
+ * Delays grow exponentially with full jitter up to MAX_DELAY, and every
+ * clip has a budget of MAX_ATTEMPTS. The next attempt time is journaled
+ * in the {@link ClipOutbox}; an alarm restarts ClippingService when the
+ * earliest one is due, so retries survive a process restart.
+ */
+public class RetryScheduler {
+    private static final String LOG_TAG = "RetryScheduler";
+
+    public static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_DELAY = 30 * 1000;
+    private static final long MAX_DELAY  = 60 * 60 * 1000;
+    // The bundled EDAM library predates RATE_LIMIT_REACHED and
+    // rateLimitDuration, so such a system exception arrives without a
+    // known error code. Wait at least this long in that case.
+    private static final long RATE_LIMIT_DELAY = 15 * 60 * 1000;
+
+    private final Context mContext;
+    private final Random mRandom = new Random();
+
+    public RetryScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns true if the failed upload may be attempted again.
+     *
+     * @param noteSent true if createNote was already sent, which is not
+     * idempotent: it is only retried when it surely did not reach the server.
+     */
+    public boolean isRetryable(Throwable t, boolean noteSent) {
+        if (t instanceof EDAMUserException || t instanceof EDAMNotFoundException) {
+            return false;
+        }
+        // thrown by EvernoteSession when not logged in, waiting will not help.
+        if (t instanceof IllegalStateException) {
+            return false;
+        }
+        if (!noteSent || t instanceof EDAMSystemException) {
+            return true;
+        }
+        return isNotDelivered(t);
+    }
+
+    public boolean hasBudget(int attempts) {
+        return attempts < MAX_ATTEMPTS;
+    }
+
+    /**
+     * Returns the delay before the given attempt, counted from 1.
+     */
+    public long getDelay(int attempt, Throwable t) {
+        long delay = BASE_DELAY << Math.min(attempt - 1, 20);
+        if (delay > MAX_DELAY) delay = MAX_DELAY;
+        delay = (long) (mRandom.nextDouble() * delay);
+        if (isRateLimited(t) && delay < RATE_LIMIT_DELAY) {
+            delay = RATE_LIMIT_DELAY;
+        }
+        return delay;
+    }
+
+    /**
+     * Sets the wake up alarm to the earliest retry among the pending clips.
+     */
+    public void scheduleWakeup(List<Clip> pending) {
+        long now = System.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+        Iterator<Clip> itr = pending.iterator();
+        while (itr.hasNext()) {
+            long at = itr.next().getNextAttemptAt();
+            if (at > now && at < earliest) earliest = at;
+        }
+        AlarmManager alarm = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getService(mContext, 0,
+                new Intent(mContext, ClippingService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        if (earliest == Long.MAX_VALUE) {
+            alarm.cancel(operation);
+        } else {
+            Log.d(LOG_TAG, "Next retry in " + (earliest - now) + "ms");
+            alarm.set(AlarmManager.RTC, earliest, operation);
+        }
+    }
+
+    private static boolean isRateLimited(Throwable t) {
+        return t instanceof EDAMSystemException && !((EDAMSystemException) t).isSetErrorCode();
+    }
+
+    // connection failures and HTTP errors mean the request was not processed.
+    private static boolean isNotDelivered(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof NoRouteToHostException ||
+                    t instanceof UnknownHostException) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && message.startsWith("HTTP Response code")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs at most one task per key at a time. Callers arriving while a task
+ * for their key is in flight wait for it and share its result or error.
+ */
+public class SingleFlight<K, V> {
+    private final HashMap<K, Call<V>> mCalls = new HashMap<K, Call<V>>();
+
+    private static class Call<V> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        V mResult;
+        Exception mError;
+    }
+
+    public V run(K key, Callable<V> task) throws Exception {
+        Call<V> call;
+        boolean owner = false;
+        synchronized (mCalls) {
+            call = mCalls.get(key);
+            if (call == null) {
+                call = new Call<V>();
+                mCalls.put(key, call);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            call.mDone.await();
+        } else {
+            try {
+                call.mResult = task.call();
+            } catch (Exception e) {
+                call.mError = e;
+            } finally {
+                synchronized (mCalls) {
+                    mCalls.remove(key);
+                }
+                call.mDone.countDown();
+            }
+        }
+        if (call.mError != null) throw call.mError;
+        return call.mResult;
+    }
+}
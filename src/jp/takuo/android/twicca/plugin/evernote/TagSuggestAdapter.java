@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+/**
+ * Suggests tag names starting with the typed prefix, ignoring case.
+ *
+ * The names are given in String.CASE_INSENSITIVE_ORDER, as the metadata
+ * cache keeps them. They are case-folded once, on the filter thread,
+ * so a lookup is a binary search plus a scan over the matches.
+ */
+public class TagSuggestAdapter extends BaseAdapter implements Filterable {
+    private static final int MAX_SUGGESTIONS = 50;
+    private static final String[] NONE = new String[0];
+
+    private final LayoutInflater mInflater;
+    private final String[] mNames;
+    private String[] mKeys;
+    private String[] mSuggestions = NONE;
+    private Filter mFilter;
+
+    public TagSuggestAdapter(Context context, String[] names) {
+        mInflater = LayoutInflater.from(context);
+        mNames = names;
+    }
+
+    @Override
+    public int getCount() {
+        return mSuggestions.length;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mSuggestions[position];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(R.layout.list_item, parent, false);
+        }
+        view.setText(mSuggestions[position]);
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (mFilter == null) mFilter = new PrefixFilter();
+        return mFilter;
+    }
+
+    private synchronized String[] getKeys() {
+        if (mKeys == null) {
+            String[] keys = new String[mNames.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = MetadataCache.fold(mNames[i]);
+            }
+            mKeys = keys;
+        }
+        return mKeys;
+    }
+
+    private class PrefixFilter extends Filter {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            String[] found = NONE;
+            if (constraint != null && constraint.length() > 0) {
+                String[] keys = getKeys();
+                String prefix = MetadataCache.fold(constraint);
+                int low = 0;
+                int high = keys.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (keys[mid].compareTo(prefix) < 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                int end = low;
+                while (end < keys.length && end - low < MAX_SUGGESTIONS && keys[end].startsWith(prefix)) {
+                    end++;
+                }
+                found = new String[end - low];
+                System.arraycopy(mNames, low, found, 0, found.length);
+            }
+            results.values = found;
+            results.count = found.length;
+            return results;
+        }
+
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            mSuggestions = (String[]) results.values;
+            if (results.count > 0) {
+                notifyDataSetChanged();
+            } else {
+                notifyDataSetInvalidated();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * URLs, mentions, hashtags and cashtags of a tweet, as spans of its text.
+ *
+ * The text is scanned once by {@link #extract(String)}; spans are in text
+ * order and never overlap. Rendering and tag derivation both read the
+ * spans instead of scanning the text again.
+ */
+public class TweetEntities {
+    public static final int URL     = 0;
+    public static final int MENTION = 1;
+    public static final int HASHTAG = 2;
+    public static final int CASHTAG = 3;
+
+    private static final int MAX_MENTION_LENGTH = 20;
+    private static final int MAX_CASHTAG_LENGTH = 6;
+
+    private final String mText;
+    private int[] mSpans = new int[3 * 8]; // type, start, end
+    private int mCount;
+
+    private TweetEntities(String text) {
+        mText = text;
+    }
+
+    public static TweetEntities extract(String text) {
+        TweetEntities entities = new TweetEntities(text);
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int type;
+            int end;
+            switch (text.charAt(i)) {
+            case 'h':
+            case 'H':
+                type = URL;
+                end = scanUrl(text, i);
+                break;
+            case '@':
+            case '\uff20':
+                type = MENTION;
+                end = scanMention(text, i);
+                break;
+            case '#':
+            case '\uff03':
+                type = HASHTAG;
+                end = HashtagScanner.scan(text, i);
+                break;
+            case '$':
+                type = CASHTAG;
+                end = scanCashtag(text, i);
+                break;
+            default:
+                i++;
+                continue;
+            }
+            if (end > i) {
+                entities.add(type, i, end);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return entities;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getType(int index) {
+        return mSpans[index * 3];
+    }
+
+    public int getStart(int index) {
+        return mSpans[index * 3 + 1];
+    }
+
+    public int getEnd(int index) {
+        return mSpans[index * 3 + 2];
+    }
+
+    /**
+     * The entity without its "@", "#" or "$"; the URL as it is.
+     */
+    public String getValue(int index) {
+        int start = getStart(index);
+        if (getType(index) != URL) start++;
+        return mText.substring(start, getEnd(index));
+    }
+
+    /**
+     * Hashtags without "#", in text order, each only once ignoring case.
+     */
+    public ArrayList<String> getHashtags() {
+        ArrayList<String> tags = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        for (int i = 0; i < mCount; i++) {
+            if (getType(i) != HASHTAG) continue;
+            String tag = getValue(i);
+            if (seen.add(MetadataCache.fold(tag))) tags.add(tag);
+        }
+        return tags;
+    }
+
+    /**
+     * URLs which may lead to an image, each only once: image files,
+     * photo pages and t.co links, which are resolved when fetched.
+     */
+    public ArrayList<String> getImageUrls() {
+        ArrayList<String> urls = new ArrayList<String>();
+        for (int i = 0; i < mCount; i++) {
+            if (getType(i) != URL) continue;
+            String url = getValue(i);
+            if (isImageUrl(url) && !urls.contains(url)) urls.add(url);
+        }
+        return urls;
+    }
+
+    private static boolean isImageUrl(String url) {
+        int end = url.length();
+        int i = url.indexOf('?');
+        if (i >= 0) end = i;
+        i = url.indexOf('#');
+        if (i >= 0 && i < end) end = i;
+        String path = url.substring(0, end).toLowerCase();
+        return path.endsWith(".jpg") || path.endsWith(".jpeg")
+            || path.endsWith(".png") || path.endsWith(".gif")
+            || path.startsWith("http://t.co/") || path.startsWith("https://t.co/")
+            || MediaFetcher.isPhotoPage(url);
+    }
+
+    private void add(int type, int start, int end) {
+        if (mSpans.length < (mCount + 1) * 3) {
+            int[] spans = new int[mSpans.length * 2];
+            System.arraycopy(mSpans, 0, spans, 0, mSpans.length);
+            mSpans = spans;
+        }
+        mSpans[mCount * 3] = type;
+        mSpans[mCount * 3 + 1] = start;
+        mSpans[mCount * 3 + 2] = end;
+        mCount++;
+    }
+
+    // "http://" or "https://" and at least one URL character
+    private static int scanUrl(String text, int i) {
+        int j;
+        if (text.regionMatches(true, i, "http://", 0, 7)) {
+            j = i + 7;
+        } else if (text.regionMatches(true, i, "https://", 0, 8)) {
+            j = i + 8;
+        } else {
+            return -1;
+        }
+        int start = j;
+        while (j < text.length() && isUrlChar(text.charAt(j))) j++;
+        return j > start ? j : -1;
+    }
+
+    private static boolean isUrlChar(char c) {
+        if (isWordChar(c)) return true;
+        switch (c) {
+        case '.': case '-': case '/': case ':': case '#': case '?':
+        case '=': case '&': case ';': case '%': case '~': case '+':
+            return true;
+        }
+        return false;
+    }
+
+    // up to 20 word characters, not preceded by a word character or
+    // "!#$%&*@", not followed by "@" or "://"
+    private static int scanMention(String text, int i) {
+        if (i > 0) {
+            char prev = text.charAt(i - 1);
+            if (isWordChar(prev) || "!#$%&*@\uff20".indexOf(prev) >= 0) return -1;
+        }
+        int length = text.length();
+        int j = i + 1;
+        while (j < length && isWordChar(text.charAt(j))) j++;
+        if (j == i + 1 || j - i - 1 > MAX_MENTION_LENGTH) return -1;
+        if (j < length) {
+            char c = text.charAt(j);
+            if (c == '@' || c == '\uff20' || text.startsWith("://", j)) return -1;
+        }
+        return j;
+    }
+
+    // "$" and up to 6 letters with an optional ".xx" or "_xx" suffix, at
+    // the start of a word and followed by a space, punctuation or the end
+    private static int scanCashtag(String text, int i) {
+        if (i > 0 && !Character.isWhitespace(text.charAt(i - 1))) return -1;
+        int length = text.length();
+        int j = i + 1;
+        while (j < length && isLetter(text.charAt(j))) j++;
+        if (j == i + 1 || j - i - 1 > MAX_CASHTAG_LENGTH) return -1;
+        if (j + 1 < length && (text.charAt(j) == '.' || text.charAt(j) == '_')
+                && isLetter(text.charAt(j + 1))) {
+            int k = j + 1;
+            while (k < length && isLetter(text.charAt(k))) k++;
+            if (k - j - 1 <= 2) j = k;
+        }
+        if (j < length) {
+            char c = text.charAt(j);
+            if (!Character.isWhitespace(c) && !isPunct(c)) return -1;
+        }
+        return j;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWordChar(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isPunct(char c) {
+        return c > ' ' && c < 0x7f && !isLetter(c) && (c < '0' || c > '9');
+    }
+}
@@ -19,10 +19,9 @@ package jp.takuo.android.twicca.plugin.evernote;
 /* from EDAM sample */
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.evernote.client.conn.ApplicationInfo;
 import com.evernote.client.oauth.android.EvernoteSession;
@@ -36,7 +35,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -55,45 +53,19 @@ public class TwiccaEvernoteUploader extends Activity {
     private static final String LOG_TAG = "TwiccaEvernote";
     private static final int REQUEST_CODE = 210;
 
-    /* hashtag related */
-    private static final String SEARCH_URL = "https://twitter.com/search?q=%23";
-    private static final String LATIN_ACCENTS_CHARS = "\\u00c0-\\u00d6\\u00d8-\\u00f6\\u00f8-\\u00ff\\u015f";
-    private static final String HASHTAG_ALPHA_CHARS = "a-z" + LATIN_ACCENTS_CHARS +
-            "\\u0400-\\u04ff\\u0500-\\u0527" +  // Cyrillic
-            "\\u2de0-\\u2dff\\ua640-\\ua69f" +  // Cyrillic Extended A/B
-            "\\u1100-\\u11ff\\u3130-\\u3185\\uA960-\\uA97F\\uAC00-\\uD7AF\\uD7B0-\\uD7FF" + // Hangul (Korean)
-            "\\p{InHiragana}\\p{InKatakana}" +  // Japanese Hiragana and Katakana
-            "\\p{InCJKUnifiedIdeographs}" +     // Japanese Kanji / Chinese Han
-            "\\u3005\\u303b" +                  // Kanji/Han iteration marks
-            "\\uff21-\\uff3a\\uff41-\\uff5a" +  // full width Alphabet
-            "\\uff66-\\uff9f" +                 // half width Katakana
-            "\\uffa1-\\uffdc";                  // half width Hangul (Korean)
-    private static final String HASHTAG_ALPHA_NUMERIC_CHARS = "0-9\\uff10-\\uff19_" + HASHTAG_ALPHA_CHARS;
-    private static final String HASHTAG_ALPHA = "[" + HASHTAG_ALPHA_CHARS +"]";
-    private static final String HASHTAG_ALPHA_NUMERIC = "[" + HASHTAG_ALPHA_NUMERIC_CHARS +"]";
-    private static final Pattern HASHTAG_PATTERN = Pattern.compile(
-            "(^|[^&/" + HASHTAG_ALPHA_NUMERIC_CHARS + "])(#|\uFF03)(" +
-             HASHTAG_ALPHA_NUMERIC + "*" +
-             HASHTAG_ALPHA +
-             HASHTAG_ALPHA_NUMERIC + "*)", Pattern.CASE_INSENSITIVE);
-    private static final Pattern HASHTAG_END = Pattern.compile("^(?:[#\uFF03]|://)");
-    /* end hashtag related */
-
-    private static final Pattern URL_PATTERN = Pattern.compile(
-            "(https?://){1}[\\w\\.\\-/:\\#\\?\\=\\&\\;\\%\\~\\+]+", Pattern.CASE_INSENSITIVE);
-    private static final String NOTE_PREFIX =
-        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
-        "<!DOCTYPE en-note SYSTEM \"http://xml.evernote.com/pub/enml2.dtd\">" +
-        "<en-note>";
-    private static final String NOTE_SUFFIX = "</en-note>";
-
     // Preferences keys
     public static final String PREF_EVERNOTE_NOTEBOOK = "pref_evernote_notebook";
+    public static final String PREF_EVERNOTE_NOTEBOOK_GUID = PREF_EVERNOTE_NOTEBOOK + "_guid";
     public static final String PREF_EVERNOTE_TAGS     = "pref_evernote_tags";
     public static final String PREF_EVERNOTE_CRYPTED  = "pref_evernote_crypted";
     public static final String PREF_CONFIRM_DIALOG    = "pref_confirm_dialog";
     public static final String PREF_HASHTAG_CLIPTAG   = "pref_hashtag_cliptag";
     public static final String PREF_NAME_CLIPTAG      = "pref_name_cliptag";
+    public static final String PREF_NOTE_LAYOUT       = "pref_note_layout";
+    public static final String PREF_EMBED_AVATAR      = "pref_embed_avatar";
+    public static final String PREF_EMBED_MEDIA       = "pref_embed_media";
+    public static final String PREF_IMAGE_SIZE        = "pref_image_size";
+    public static final String PREF_IMAGE_QUALITY     = "pref_image_quality";
 
     private Context mContext;
 
@@ -108,7 +80,7 @@ public class TwiccaEvernoteUploader extends Activity {
     
     // Evernote settings
     private SharedPreferences mPrefs;
-    private String mEvernoteNotebook;
+    private NotebookRef mEvernoteNotebook;
     private String mEvernoteTags;
 
     // UI
@@ -118,6 +90,19 @@ public class TwiccaEvernoteUploader extends Activity {
 
     // Caching
     private ECacheManager cacheManager;
+    private int mLastItem;
+    private final ECacheManager.OnMetadataChangedListener mMetadataListener =
+            new ECacheManager.OnMetadataChangedListener() {
+        @Override
+        public void onMetadataChanged() {
+            if (mSpinner.getSelectedItemPosition() != mLastItem) {
+                setNotebookItems((NotebookRef) mSpinner.getSelectedItem());
+            } else {
+                setNotebookItems(null);
+            }
+            mEditTags.setAdapter(new TagSuggestAdapter(mContext, cacheManager.getTagNames()));
+        }
+    };
     
     // Session
     private EvernoteSession mSession;
@@ -179,53 +164,31 @@ public class TwiccaEvernoteUploader extends Activity {
 
     private void requestUpload ()
     {
-        Time time = new Time();
-        time.set(Long.parseLong(mCreatedAt));
-        Matcher matcher = URL_PATTERN.matcher(mBodyText);
-        mBodyText = matcher.replaceAll("<a target=\"_blank\" href=\"$0\">$0</a>").replace("\n", "<br />");
-        mBodyText = autoLinkHashtags(mBodyText);
-        String content =
-            NOTE_PREFIX +
-            "<table style='border-radius: 10px; background-color: #eeeeee'>" +
-            "<tr><td valign='top' style='padding: 10px'>" +
-            "<img src=\"" + mProfileImageUrl + "\"/>" +
-            " </td>" +
-            "<td style='padding: 10px'>" +
-            "<b>" + mUsername + "(<a href=\"http://twitter.com/" + mScreenName + "\">" + "@" + mScreenName + "</a>)</b>" +
-            "<p>" + mBodyText + "</p>" +
-            "<a style='color: #888888' href=\"http://twitter.com/"+ mScreenName + "/status/"+ mTweetId + "\">" + time.format("%m/%d %H:%M:%S") + "</a>" +
-            " <span style='color: #888888'>from " + mSource + "</span>" +
-            "</td></tr>" +
-            "</table>" +
-            NOTE_SUFFIX;
-
-        if (mPrefs.getBoolean(PREF_NAME_CLIPTAG, false)) {
-            if (mEvernoteTags.length() > 0) {
-                mEvernoteTags += "," + mScreenName;
-            } else {
-                mEvernoteTags = mScreenName;
-            } // mEvernoteTags
-        } // PREF_NAME_CLIPTAG
-
+        // rendered by the service, only the tweet is handed over.
         Intent intent = new Intent(this, ClippingService.class);
-        intent.putExtra("notebook", mEvernoteNotebook);
-        intent.putExtra("tags", mEvernoteTags);
-        intent.putExtra("title", "Tweet by " + mUsername +" (@" + mScreenName + ")");
-        intent.putExtra(Intent.EXTRA_TEXT, content);
-        intent.putExtra("url", "http://twitter.com/"+ mScreenName + "/statuses/"+ mTweetId);
+        intent.putExtra(Clip.NOTEBOOK, mEvernoteNotebook.getName());
+        intent.putExtra(Clip.NOTEBOOK_GUID, mEvernoteNotebook.getGuid());
+        intent.putExtra(Clip.TAGS, mEvernoteTags);
+        intent.putExtra(Clip.TITLE, "Tweet by " + mUsername +" (@" + mScreenName + ")");
+        intent.putExtra(Clip.URL, "http://twitter.com/"+ mScreenName + "/statuses/"+ mTweetId);
+        intent.putExtra(Clip.TWEET_TEXT, mBodyText);
+        intent.putExtra(Clip.TWEET_ID, mTweetId);
+        intent.putExtra(Clip.SCREEN_NAME, mScreenName);
+        intent.putExtra(Clip.USER_NAME, mUsername);
+        intent.putExtra(Clip.PROFILE_IMAGE, mProfileImageUrl);
+        intent.putExtra(Clip.CREATED_AT, mCreatedAt);
+        intent.putExtra(Clip.SOURCE, mSource);
         Toast.makeText(mContext, getString(R.string.message_do_background), Toast.LENGTH_SHORT).show();
         startService(intent);
     }
 
     private void run () {
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        mEvernoteNotebook = mPrefs.getString(PREF_EVERNOTE_NOTEBOOK, "");
+        mEvernoteNotebook = new NotebookRef(mPrefs.getString(PREF_EVERNOTE_NOTEBOOK_GUID, null),
+                mPrefs.getString(PREF_EVERNOTE_NOTEBOOK, ""));
         mEvernoteTags = mPrefs.getString(PREF_EVERNOTE_TAGS, "");
 
         if (mPrefs.getBoolean(PREF_CONFIRM_DIALOG, true)) {
-            ArrayList<String> notebooks = cacheManager.getNotebookNames();
-            final int lastItem = notebooks.size();
-            String[] tags = cacheManager.getTagNames();
             LayoutInflater inflater = getLayoutInflater();
             View layout = inflater.inflate(R.layout.alert_dialog,
                                            (ViewGroup) findViewById(R.id.layout_root));
@@ -236,25 +199,11 @@ public class TwiccaEvernoteUploader extends Activity {
             mEditNotebook.setHint(getString(R.string.hint_empty));
 
             mSpinner = (Spinner)layout.findViewById(R.id.notebook_list);
-            ArrayAdapter<String> items = new ArrayAdapter<String>(this,
-                    R.layout.dropdown_list_item, notebooks);
-            int i = 0;
-            if (mEvernoteNotebook.length() > 0) {
-                ListIterator<String> itr = notebooks.listIterator();
-                while (itr.hasNext()) {
-                    String name = itr.next();
-                    if (mEvernoteNotebook.equalsIgnoreCase(name))
-                        break;
-                    i++;
-                }
-            }
-            items.add(getString(R.string.new_or_default));
-            mSpinner.setAdapter(items);
-            mSpinner.setSelection(i);
-            if (i == lastItem) {
+            setNotebookItems(mEvernoteNotebook);
+            if (mSpinner.getSelectedItemPosition() == mLastItem) {
                 mEditNotebook.setEnabled(true);
-                if (mEvernoteNotebook.length() > 0) {
-                    mEditNotebook.setText(mEvernoteNotebook);
+                if (mEvernoteNotebook.getName().length() > 0) {
+                    mEditNotebook.setText(mEvernoteNotebook.getName());
                 }
             } else {
                 mEditNotebook.setEnabled(false);
@@ -264,7 +213,7 @@ public class TwiccaEvernoteUploader extends Activity {
                 public void onItemSelected(AdapterView<?> arg0, View arg1,
                         int arg2, long arg3) {
                     // TODO Auto-generated method stub
-                    if (arg2 == lastItem) {
+                    if (arg2 == mLastItem) {
                         mEditNotebook.setEnabled(true);
                         mEditNotebook.requestFocus();
                     } else {
@@ -282,20 +231,18 @@ public class TwiccaEvernoteUploader extends Activity {
 
             mEditTags = (MultiAutoCompleteTextView)layout.
                 findViewById(R.id.edit_tags);
-            ArrayAdapter<String> adapter = new ArrayAdapter<String>(mContext,
-                    R.layout.list_item, tags);
-            mEditTags.setAdapter(adapter);
+            mEditTags.setAdapter(new TagSuggestAdapter(mContext, cacheManager.getTagNames()));
             mEditTags.setTokenizer(new MultiAutoCompleteTextView.CommaTokenizer());
             mEditTags.setText(mEvernoteTags);
             builder.setPositiveButton(getString(R.string.ok), new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
                     long index = mSpinner.getSelectedItemId();
-                    if (index != (long)lastItem) {
-                        mEvernoteNotebook = (String) mSpinner.getSelectedItem();
+                    if (index != (long)mLastItem) {
+                        mEvernoteNotebook = (NotebookRef) mSpinner.getSelectedItem();
                         Log.d(LOG_TAG, "Selected: " + mEvernoteNotebook);
                     } else {
-                        mEvernoteNotebook = mEditNotebook.getText().toString();
+                        mEvernoteNotebook = new NotebookRef(null, mEditNotebook.getText().toString());
                     }
                     mEvernoteTags = mEditTags.getText().toString();
                     dialog.dismiss();
@@ -313,13 +260,57 @@ public class TwiccaEvernoteUploader extends Activity {
             );
             builder.setView(layout);
             builder.create().show();
+            ECacheManager.addOnMetadataChangedListener(mMetadataListener);
         } else {
             requestUpload();
             finish();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        ECacheManager.removeOnMetadataChangedListener(mMetadataListener);
+        super.onDestroy();
+    }
+
+    // the last item of the spinner is for a new or the default notebook,
+    // it is selected if selected is null.
+    private void setNotebookItems(NotebookRef selected) {
+        ArrayList<NotebookRef> notebooks = cacheManager.getNotebooks();
+        mLastItem = notebooks.size();
+        ArrayAdapter<NotebookRef> items = new ArrayAdapter<NotebookRef>(this,
+                R.layout.dropdown_list_item, notebooks);
+        int i = 0;
+        if (selected == null) {
+            i = mLastItem;
+        } else if (selected.getName().length() > 0) {
+            ListIterator<NotebookRef> itr = notebooks.listIterator();
+            while (itr.hasNext()) {
+                if (selected.matches(itr.next()))
+                    break;
+                i++;
+            }
+        }
+        items.add(new NotebookRef(null, getString(R.string.new_or_default)));
+        mSpinner.setAdapter(items);
+        mSpinner.setSelection(i);
+    }
+
     /* utility */
+    // appends the tags not yet in the comma separated list
+    public static String addTags(String list, ArrayList<String> tags) {
+        ArrayList<String> result = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        for (String tag : list.split(",")) {
+            tag = tag.trim();
+            if (tag.length() > 0 && seen.add(MetadataCache.fold(tag))) result.add(tag);
+        }
+        for (String tag : tags) {
+            if (seen.add(MetadataCache.fold(tag))) result.add(tag);
+        }
+        return join(result, ",");
+    }
+
     public static String join(AbstractCollection<String> s, String delimiter) {
         if (s.isEmpty()) return "";
         Iterator<String> iter = s.iterator();
@@ -327,36 +318,4 @@ public class TwiccaEvernoteUploader extends Activity {
         while (iter.hasNext()) buffer.append(delimiter).append(iter.next());
         return buffer.toString();
     }
-
-    public String autoLinkHashtags(String text) {
-        StringBuffer sb = new StringBuffer();
-        ArrayList<String> tags = new ArrayList<String>();
-        if (mEvernoteTags.length() > 0) tags.add(mEvernoteTags);
-        Matcher matcher = HASHTAG_PATTERN.matcher(text);
-        while (matcher.find()) {
-            String after = text.substring(matcher.end());
-            if (!HASHTAG_END.matcher(after).find()) {
-                StringBuilder replacement = new StringBuilder(text.length() * 2);
-                replacement.append(matcher.group(1))
-                    .append("<a href=\"").append(SEARCH_URL)
-                    .append(matcher.group(3)).append("\"")
-                    .append(" target=\"_blank\" title=\"#").append(matcher.group(3))
-                    .append("\"");
-                replacement.append(">").append(matcher.group(2))
-                    .append(matcher.group(3)).append("</a>");
-                matcher.appendReplacement(sb, replacement.toString());
-                if (!tags.contains(matcher.group(3))) {
-                    tags.add(matcher.group(3));
-                } // if
-            } else {
-                // not a valid hashtag
-                matcher.appendReplacement(sb, "$0");
-            } // if valid?
-        } // while
-        matcher.appendTail(sb);
-        if (mPrefs.getBoolean(PREF_HASHTAG_CLIPTAG, false)) {
-            mEvernoteTags = join(tags, ",");
-        } // if
-        return sb.toString();
-    } // func()
 }
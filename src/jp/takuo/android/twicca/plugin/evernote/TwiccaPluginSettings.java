@@ -38,7 +38,8 @@ import android.preference.PreferenceActivity;
 import android.util.Log;
 import android.widget.Toast;
 
-public class TwiccaPluginSettings extends PreferenceActivity implements OnPreferenceChangeListener {
+public class TwiccaPluginSettings extends PreferenceActivity
+        implements OnPreferenceChangeListener, ECacheManager.OnMetadataChangedListener {
     public static final String SHARED_PREF = TwiccaPluginSettings.class.toString();
     /** Called when the activity is first created. */
     private static final String LOG_TAG = TwiccaPluginSettings.class.toString();
@@ -63,11 +64,12 @@ public class TwiccaPluginSettings extends PreferenceActivity implements OnPrefer
         notebookPref = (NotebookPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_NOTEBOOK);
         notebookPref.setSummary(notebookPref.getText());
         notebookPref.setOnPreferenceChangeListener(this);
-        notebookPref.setNotebookList(cacheManager.getNotebookNames());
+        notebookPref.setNotebookList(cacheManager.getNotebooks());
         meditPref = (MultiAutoCompleteEditTextPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_TAGS);
         meditPref.setSummary(meditPref.getText());
         meditPref.setOnPreferenceChangeListener(this);
         meditPref.setStringArray(cacheManager.getTagNames());
+        ECacheManager.addOnMetadataChangedListener(this);
 
         setupSession(reset_auth);
 
@@ -79,6 +81,9 @@ public class TwiccaPluginSettings extends PreferenceActivity implements OnPrefer
                    mSession.authenticate(mContext);
                } else {
                    mSession.logOut(getSharedPreferences(SHARED_PREF, MODE_PRIVATE));
+                   // the next account must not see this one's notebooks and tags
+                   MetadataMirror.getInstance(mContext).reset();
+                   ECacheManager.clear(getCacheDir());
                }
                updateui();
                return true;
@@ -94,6 +99,18 @@ public class TwiccaPluginSettings extends PreferenceActivity implements OnPrefer
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        ECacheManager.removeOnMetadataChangedListener(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onMetadataChanged() {
+        ((NotebookPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_NOTEBOOK)).setNotebookList(cacheManager.getNotebooks());
+        ((MultiAutoCompleteEditTextPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_TAGS)).setStringArray(cacheManager.getTagNames());
+    }
+
     private void updateui() {
         Preference pref = findPreference("pref_do_auth");
         if (mSession.isLoggedIn()) {
@@ -198,9 +215,6 @@ public class TwiccaPluginSettings extends PreferenceActivity implements OnPrefer
             }
             if (!result) {
                 setupSession(true);
-            } else {
-                ((NotebookPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_NOTEBOOK)).setNotebookList(cacheManager.getNotebookNames());
-                ((MultiAutoCompleteEditTextPreference)findPreference(TwiccaEvernoteUploader.PREF_EVERNOTE_TAGS)).setStringArray(cacheManager.getTagNames());
             }
         }
 
@@ -220,8 +234,8 @@ public class TwiccaPluginSettings extends PreferenceActivity implements OnPrefer
             for (int i=0; i<5;i++) {
                 try {
                     mNoteStore = mSession.createNoteStore();
-                    cacheManager.writeNoteCache(mNoteStore.listNotebooks(mAuthToken));
-                    cacheManager.writeTagsCache(mNoteStore.listTags(mAuthToken));
+                    MetadataMirror.getInstance(mContext).sync(mNoteStore, mAuthToken,
+                            mSession.getAuthenticationResult().getUserId(), true);
                     mToastMessage = null;
                     return true;
                 } catch (EDAMUserException eue) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Takuo Kitame.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.takuo.android.twicca.plugin.evernote;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.thrift.transport.TTransportException;
+
+import com.evernote.client.oauth.android.EvernoteSession;
+import com.evernote.edam.notestore.NoteStore;
+
+import android.os.Process;
+
+/**
+ * Uploads clips with a bounded pool of workers.
+ *
+ * Clips are queued in one lane per notebook: a lane runs on a single
+ * worker at a time, so clips to the same notebook keep their order while
+ * different notebooks are uploaded in parallel. Each worker thread owns
+ * its own NoteStore.Client, since the clients are not thread safe.
+ */
+public class UploadEngine {
+    // well below the 18 connections per route TEvernoteHttpClient allows.
+    private static final int MAX_WORKERS = 4;
+    // a note with attached images is spooled to disk, not the heap
+    private static final int MEMORY_BUFFER_SIZE = 64 * 1024;
+
+    public interface Callback {
+        /**
+         * Called on a worker thread. Returns true once the clip reached a
+         * final state, false if it should stay in the outbox.
+         */
+        boolean onUpload(Clip clip);
+
+        /**
+         * Called on a worker thread when the last lane ran empty.
+         */
+        void onIdle();
+    }
+
+    private final Callback mCallback;
+    private volatile EvernoteSession mSession;
+    private final ExecutorService mExecutor;
+    private final ThreadLocal<NoteStore.Client> mNoteStore = new ThreadLocal<NoteStore.Client>();
+    private final ThreadLocal<EvernoteSession> mNoteStoreSession = new ThreadLocal<EvernoteSession>();
+    private final HashMap<String, Lane> mLanes = new HashMap<String, Lane>();
+    private final HashSet<Long> mQueued = new HashSet<Long>();
+
+    public UploadEngine(EvernoteSession session, Callback callback) {
+        mSession = session;
+        mCallback = callback;
+        mExecutor = Executors.newFixedThreadPool(MAX_WORKERS, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "UploadWorker-" + (++mCount));
+            }
+        });
+    }
+
+    /**
+     * Queues the clip unless it is already queued or being uploaded.
+     */
+    public synchronized void submit(Clip clip) {
+        if (!mQueued.add(clip.getId())) return;
+        String key = getLane(clip);
+        Lane lane = mLanes.get(key);
+        if (lane == null) {
+            lane = new Lane(key);
+            mLanes.put(key, lane);
+            lane.mQueue.add(clip);
+            mExecutor.execute(lane);
+        } else {
+            lane.mQueue.add(clip);
+        }
+    }
+
+    /**
+     * Returns the key of the lane the clip is queued in.
+     */
+    public static String getLane(Clip clip) {
+        return MetadataCache.fold(clip.get(Clip.NOTEBOOK));
+    }
+
+    /**
+     * Replaces the session, e.g. after the user logged in again. Each
+     * worker opens a new client on its next call to getNoteStore().
+     */
+    public void setSession(EvernoteSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Returns the NoteStore.Client owned by the calling worker thread.
+     */
+    public NoteStore.Client getNoteStore() throws TTransportException {
+        EvernoteSession session = mSession;
+        NoteStore.Client client = mNoteStore.get();
+        if (client == null || mNoteStoreSession.get() != session) {
+            client = session.createNoteStore(MEMORY_BUFFER_SIZE);
+            mNoteStore.set(client);
+            mNoteStoreSession.set(session);
+        }
+        return client;
+    }
+
+    /**
+     * Drops the calling worker's client, e.g. after a transport error.
+     */
+    public void resetNoteStore() {
+        mNoteStore.remove();
+        mNoteStoreSession.remove();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private class Lane implements Runnable {
+        private final String mKey;
+        private final LinkedList<Clip> mQueue = new LinkedList<Clip>();
+
+        Lane(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Clip clip;
+                boolean idle = false;
+                synchronized (UploadEngine.this) {
+                    clip = mQueue.poll();
+                    if (clip == null) {
+                        mLanes.remove(mKey);
+                        idle = mLanes.isEmpty();
+                    }
+                }
+                if (clip == null) {
+                    if (idle) mCallback.onIdle();
+                    return;
+                }
+                boolean settled = mCallback.onUpload(clip);
+                synchronized (UploadEngine.this) {
+                    mQueued.remove(clip.getId());
+                    if (!settled) {
+                        // keep the order, the rest waits for the next drain.
+                        Iterator<Clip> itr = mQueue.iterator();
+                        while (itr.hasNext()) mQueued.remove(itr.next().getId());
+                        mQueue.clear();
+                    }
+                }
+            }
+        }
+    }
+}